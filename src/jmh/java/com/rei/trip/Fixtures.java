@@ -0,0 +1,30 @@
+package com.rei.trip;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Checked-in xml fixtures of the benchmarks, under src/jmh/resources/fixtures.
+ *
+ * @author sahan
+ */
+public class Fixtures {
+
+    /**
+     * Defined to prevent instances of this class from being created.
+     */
+    private Fixtures() {
+    }
+
+    public static byte[] read(String name) throws IOException {
+        try (InputStream input = Fixtures.class.getResourceAsStream("/fixtures/" + name)) {
+            if (input == null) {
+                throw new FileNotFoundException("fixtures/" + name);
+            }
+            return IOUtils.toByteArray(input);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.rei.trip;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * End-to-end scale benchmark: runs Main against a SyntheticDocumentum of N trips, into a temporary
+ * output root, and reports wall time, peak heap, GC time and documents per second.
+ * Each run is a cold full build, so run one catalog size per JVM:
+ *
+ *     mvn -P benchmarks package
+ *     java -Xmx512m -cp target/benchmarks.jar com.rei.trip.ScaleBenchmark --trips=5000 --latency-ms=20
+ *
+ * Options: --trips=, --regions=, --latency-ms=, --jitter-ms=, --error-rate= (share of requests
+ * failed with 503) and --keep to leave the output root in place. Any other option is passed on to
+ * Main, e.g. --parallelism=32 or --pipeline-depth=64.
+ *
+ * @author sahan
+ */
+public class ScaleBenchmark {
+
+    /**
+     * Defined to prevent instances of this class from being created.
+     */
+    private ScaleBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int trips = 1000;
+        int regions = 10;
+        long latency = 20;
+        long jitter = 10;
+        double errorRate = 0.01;
+        boolean keep = false;
+        List<String> mainArgs = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--trips=")) {
+                trips = Integer.parseInt(arg.substring("--trips=".length()));
+            } else if (arg.startsWith("--regions=")) {
+                regions = Integer.parseInt(arg.substring("--regions=".length()));
+            } else if (arg.startsWith("--latency-ms=")) {
+                latency = Long.parseLong(arg.substring("--latency-ms=".length()));
+            } else if (arg.startsWith("--jitter-ms=")) {
+                jitter = Long.parseLong(arg.substring("--jitter-ms=".length()));
+            } else if (arg.startsWith("--error-rate=")) {
+                errorRate = Double.parseDouble(arg.substring("--error-rate=".length()));
+            } else if (arg.equals("--keep")) {
+                keep = true;
+            } else {
+                mainArgs.add(arg);
+            }
+        }
+        if (trips < 1 || trips > 100000) {
+            throw new IllegalArgumentException("--trips must be between 1 and 100000");
+        }
+
+        SyntheticDocumentum documentum = new SyntheticDocumentum(trips, regions, latency, jitter, errorRate);
+        File root = Files.createTempDirectory("trip-scale").toFile();
+        File tripData = new File(root, "tripData");
+        FileUtils.writeStringToFile(new File(tripData, "programManagers.txt"), documentum.getProgramManagers(),
+                StandardCharsets.UTF_8);
+
+        documentum.start();
+        try {
+            // the options given on the command line come last and win
+            List<String> runArgs = new ArrayList<>();
+            runArgs.add("--doc-base=" + documentum.getBase());
+            runArgs.add("--output-dir=" + root);
+            runArgs.add("--manifest=" + new File(root, "manifest.json"));
+            runArgs.add("--http-cache-dir=" + new File(root, "httpCache"));
+            runArgs.addAll(mainArgs);
+
+            System.gc();
+            long heapBefore = getHeapUsed();
+            resetPeakHeap();
+            long gcCount = getGcCount();
+            long gcTime = getGcTime();
+            long start = System.nanoTime();
+
+            Main.main(runArgs.toArray(new String[runArgs.size()]));
+
+            long wallMillis = (System.nanoTime() - start) / 1000000;
+            long peakHeap = getPeakHeap();
+            gcCount = getGcCount() - gcCount;
+            gcTime = getGcTime() - gcTime;
+            long outputs = FileUtils.listFiles(tripData, new String[]{"json"}, true).size();
+
+            System.out.println();
+            System.out.println("Scale: " + trips + " trips in " + regions + " regions, latency " + latency
+                    + "+-" + jitter + " ms, error rate " + errorRate);
+            System.out.println("  wall time     " + wallMillis + " ms");
+            System.out.println("  documents     " + documentum.getServed() + " served ("
+                    + documentum.getBytes() / 1024 + " KB), " + documentum.getFailed() + " failed");
+            System.out.println("  documents/s   " + String.format("%.1f", documentum.getServed() * 1000.0
+                    / Math.max(1, wallMillis)));
+            System.out.println("  trip outputs  " + outputs + " json files");
+            System.out.println("  heap          " + heapBefore / (1024 * 1024) + " MB before, peak "
+                    + peakHeap / (1024 * 1024) + " MB (sum of the pool peaks)");
+            System.out.println("  gc            " + gcCount + " collections, " + gcTime + " ms");
+        } finally {
+            documentum.stop();
+            if (keep) {
+                System.out.println("Output kept in " + root);
+            } else {
+                FileUtils.deleteQuietly(root);
+            }
+        }
+    }
+
+    private static long getHeapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Gets the sum of the heap pool peaks, an upper bound of the peak heap use as the pools peak
+     * at different times.
+     */
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getGcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+}
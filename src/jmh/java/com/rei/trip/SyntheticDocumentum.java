@@ -0,0 +1,297 @@
+package com.rei.trip;
+
+import com.rei.trip.util.TripConstants;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local HTTP server that serves a synthetic Documentum catalog of N trips, laid out like the CMS:
+ * the trip list, the cross-sell list, the listing page headers and per trip its xml and the detail,
+ * gear list and slideshow xmls. The trip xmls are the trip fixture with the trip id swapped in and
+ * every detail xml is the detail fixture. Trips are numbered, so the catalog is at most 100000 trips.
+ *
+ * Every response is delayed by a latency with uniform jitter, and a share of the requests is failed
+ * with 503 Service Unavailable, which the transport retries. Documents carry an ETag, so a
+ * conditional request for an unchanged document gets 304 Not Modified.
+ *
+ * @author sahan
+ */
+public class SyntheticDocumentum {
+    private static final String TRIP_PATH = "/adventures/trips/";
+    private static final String DATA_PATH = "/adventures/data/";
+
+    private final int trips;
+    private final int regions;
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double errorRate;
+
+    private final String tripTemplate;
+    private final byte[] detail;
+    private final byte[] listingPageHeaders;
+
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public SyntheticDocumentum(int trips, int regions, long latencyMillis, long jitterMillis, double errorRate)
+            throws IOException {
+        this.trips = trips;
+        this.regions = Math.max(1, Math.min(regions, trips));
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorRate = errorRate;
+        this.tripTemplate = new String(Fixtures.read("trip.xml"), StandardCharsets.UTF_8);
+        this.detail = Fixtures.read("detail.xml");
+        this.listingPageHeaders = Fixtures.read("listing-page-headers.xml");
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        // handlers sleep for the latency, so every request gets a thread
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "synthetic-documentum");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Gets the base url to use in place of TripConstants.DOC_BASE.
+     */
+    public String getBase() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    public long getServed() {
+        return served.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Gets the program managers file of the catalog, with a manager for every other trip.
+     */
+    public String getProgramManagers() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < trips; i += 2) {
+            builder.append("pm@").append(getTripId(i)).append("@Manager ").append(i)
+                    .append("@Runs trip ").append(getTripId(i)).append("@manager").append(i % 10).append(".jpg\n");
+        }
+        return builder.toString();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            delay();
+            if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+                failed.incrementAndGet();
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_UNAVAILABLE, -1);
+                return;
+            }
+
+            byte[] body = getDocument(exchange.getRequestURI().getPath());
+            if (body == null) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+                return;
+            }
+
+            String etag = "\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"";
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+                served.incrementAndGet();
+                return;
+            }
+
+            String encoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (encoding != null && encoding.contains("gzip")) {
+                body = gzip(body);
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+            served.incrementAndGet();
+            bytes.addAndGet(body.length);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void delay() {
+        long delay = latencyMillis;
+        if (jitterMillis > 0) {
+            delay += ThreadLocalRandom.current().nextLong(-jitterMillis, jitterMillis + 1);
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private byte[] getDocument(String path) {
+        if (path.equals(TripConstants.DOC_TRIP_LIST)) {
+            return getTripList();
+        }
+        if (path.equals(DATA_PATH + TripConstants.DOC_EXT_LIST_FILE_NAME)) {
+            return getCrossSellList();
+        }
+        if (path.equals(DATA_PATH + "listing-page-headers.xml")) {
+            return listingPageHeaders;
+        }
+        if (!path.startsWith(TRIP_PATH)) {
+            return null;
+        }
+
+        // /adventures/trips/<region>/<legacyId>.xml or /adventures/trips/<region>/<tripId>_dir/<type>.xml
+        String rest = path.substring(TRIP_PATH.length());
+        int slash = rest.indexOf('/');
+        String name = rest.substring(slash + 1);
+        int trip = getTrip(name);
+        if (trip < 0 || !rest.substring(0, Math.max(slash, 0)).equals(getRegion(trip))) {
+            return null;
+        }
+
+        String tripId = getTripId(trip);
+        if (name.equals(getLegacyId(trip) + ".xml")) {
+            return tripTemplate.replace("<trip_id_number>kil</trip_id_number>",
+                    "<trip_id_number>" + tripId + "</trip_id_number>").getBytes(StandardCharsets.UTF_8);
+        }
+        if (name.equals(tripId + TripConstants.DOC_DETAIL_FILE_NAME)) {
+            return detail;
+        }
+        if (name.equals(tripId + TripConstants.DOC_GEAR_FILE_NAME)) {
+            return getGearList(trip);
+        }
+        if (name.equals(tripId + TripConstants.DOC_SLIDE_SHOW_FILE_NAME)) {
+            return getSlideshow(trip);
+        }
+        return null;
+    }
+
+    /**
+     * Gets the trip number of a legacy id (l00042.xml) or trip id (t00042_dir/...), or -1.
+     */
+    private int getTrip(String name) {
+        if (name.length() < 7 || (name.charAt(0) != 'l' && name.charAt(0) != 't')) {
+            return -1;
+        }
+        try {
+            int trip = Integer.parseInt(name.substring(1, 6));
+            return trip < trips ? trip : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private String getRegion(int trip) {
+        return "region" + (trip % regions);
+    }
+
+    private String getTripId(int trip) {
+        return String.format("t%05d", trip);
+    }
+
+    private String getLegacyId(int trip) {
+        return String.format("l%05d", trip);
+    }
+
+    private byte[] getTripList() {
+        StringBuilder builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<tripList>\n");
+        for (int region = 0; region < regions; region++) {
+            builder.append("    <region>\n        <regionName>region").append(region).append("</regionName>\n")
+                    .append("        <trips>\n");
+            for (int trip = region; trip < trips; trip += regions) {
+                builder.append("            <trip>").append(TRIP_PATH).append(getRegion(trip)).append('/')
+                        .append(getLegacyId(trip)).append(".xml</trip>\n");
+            }
+            builder.append("        </trips>\n    </region>\n");
+        }
+        builder.append("</tripList>\n");
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Cross-sells every tenth trip with the trip after it.
+     */
+    private byte[] getCrossSellList() {
+        StringBuilder builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<cross-sell-list>\n");
+        for (int trip = 0; trip + 1 < trips; trip += 10) {
+            builder.append("    <cross-sell>\n        <type>").append(trip % 20 == 0 ? "related" : "extension")
+                    .append("</type>\n        <cross-sell-trip>").append(getRegion(trip)).append('/')
+                    .append(getLegacyId(trip)).append("</cross-sell-trip>\n        <main-trips>\n")
+                    .append("            <main-trip>").append(getRegion(trip + 1)).append('/')
+                    .append(getLegacyId(trip + 1)).append("</main-trip>\n        </main-trips>\n    </cross-sell>\n");
+        }
+        builder.append("</cross-sell-list>\n");
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] getGearList(int trip) {
+        StringBuilder builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<gearlist>\n");
+        for (String title : new String[]{"Gear Checklist", "Clothing", "Footwear", "Travel Documents"}) {
+            builder.append("    <section>\n        <header type=\"selector\">").append(title).append("</header>\n")
+                    .append("        <p>").append(title).append(" for trip ").append(getTripId(trip))
+                    .append(": pack light, <b>layers</b> and a rain shell.</p>\n    </section>\n");
+        }
+        builder.append("</gearlist>\n");
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] getSlideshow(int trip) {
+        StringBuilder builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<images>\n");
+        for (int i = 1; i <= 12; i++) {
+            String image = "/images/" + getTripId(trip) + "/" + i;
+            builder.append("    <pic>\n        <image>").append(image).append(".jpg</image>\n")
+                    .append("        <thumbnail>").append(image).append("_thumb.jpg</thumbnail>\n")
+                    .append("        <caption>Day ").append(i).append(" of the trip</caption>\n    </pic>\n");
+        }
+        builder.append("</images>\n");
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(body.length / 4);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+            gzip.write(body);
+        }
+        return output.toByteArray();
+    }
+}
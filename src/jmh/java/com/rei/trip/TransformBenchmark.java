@@ -0,0 +1,88 @@
+package com.rei.trip;
+
+import com.rei.trip.exception.DataBuilderException;
+import com.rei.trip.util.TripUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the trip and content transforms, on the fixtures.
+ * Run with: mvn -P benchmarks package && java -jar target/benchmarks.jar -prof gc
+ *
+ * @author sahan
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransformBenchmark {
+    private static final String TRIP_ID = "kil";
+
+    private TripDataBuilder tripDataBuilder;
+    private ContentBuilder contentBuilder;
+    private JSONObject tripCosts;
+    private Element itinerary;
+    private Element additionalInfo;
+    private byte[] listingPageHeaders;
+
+    @Setup
+    public void setUp() throws Exception {
+        TripSource source = TripSource.parse("fixtures/trip.xml", Fixtures.read("trip.xml"));
+        tripDataBuilder = new TripDataBuilder();
+        tripDataBuilder.addTripSource(TRIP_ID, source);
+        tripCosts = source.getJson().getJSONObject("tripCosts");
+
+        Document detail = TripUtils.parseXml(Fixtures.read("detail.xml"));
+        itinerary = (Element) detail.getElementsByTagName("itinerary").item(0);
+        additionalInfo = (Element) detail.getElementsByTagName("additional_information").item(0);
+
+        contentBuilder = new ContentBuilder();
+        listingPageHeaders = Fixtures.read("listing-page-headers.xml");
+    }
+
+    @Benchmark
+    public JSONArray processPrice() throws DataBuilderException {
+        return tripDataBuilder.processPrice(tripCosts);
+    }
+
+    @Benchmark
+    public JSONArray processDates() {
+        return tripDataBuilder.processDates("africa", TRIP_ID);
+    }
+
+    @Benchmark
+    public JSONObject processItinerary() {
+        return tripDataBuilder.processItinerary("", itinerary);
+    }
+
+    @Benchmark
+    public Map<String, JSONObject> processAdditionalInfo() {
+        return tripDataBuilder.processAdditionalInfo(additionalInfo);
+    }
+
+    /**
+     * Parses listing-page-headers.xml and builds the landing page content, as
+     * buildLandingPageContent does before writing it.
+     */
+    @Benchmark
+    public JSONObject buildLandingPageContent() throws Exception {
+        return contentBuilder.buildLandingPages(TripUtils.parseXml(listingPageHeaders));
+    }
+}
@@ -0,0 +1,81 @@
+package com.rei.trip.util;
+
+import com.rei.trip.Fixtures;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the markup and json serializers, on the fixtures.
+ * Run with: mvn -P benchmarks package && java -jar target/benchmarks.jar -prof gc
+ *
+ * @author sahan
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+    private Node paragraph;
+    private JSONObject detail;
+    private File directory;
+    private File output;
+
+    @Setup
+    public void setUp() throws Exception {
+        Document doc = TripUtils.parseXml(Fixtures.read("detail.xml"));
+        paragraph = doc.getElementsByTagName("itinerary").item(0).getFirstChild().getNextSibling();
+        detail = TripUtils.getJsonFromXml(doc);
+        directory = Files.createTempDirectory("trip-benchmark").toFile();
+        output = new File(directory, "detail.json");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public String nodeToString() {
+        return TripUtils.nodeToString(paragraph);
+    }
+
+    @Benchmark
+    public String nodeToStringNormalized() {
+        return MarkupWriter.toString(paragraph, MarkupWriter.Whitespace.COLLAPSE);
+    }
+
+    /**
+     * Streams the json into a file, as writeJsonToFile does into the staged release.
+     */
+    @Benchmark
+    public long writeJsonToFile() throws IOException, JSONException {
+        JsonFileWriter.write(output, detail);
+        return output.length();
+    }
+
+    @Benchmark
+    public String jsonFormatterFormat() throws JSONException {
+        return JsonFormatter.format(detail);
+    }
+}
@@ -1,5 +1,9 @@
 package com.rei.trip;
 
+import com.rei.trip.util.BuildManifest;
+import com.rei.trip.util.MarkupWriter;
+import com.rei.trip.util.OutputPublisher;
+import com.rei.trip.util.RunMetrics;
 import com.rei.trip.util.TripUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -27,85 +31,110 @@ public class ContentBuilder {
 
 
     public void buildLandingPageContent() {
+        String filename = "landingPages.json";
+        String output = TripUtils.getOutputName(filename, true);
+
+        if (BuildManifest.isUpToDate(output, OutputPublisher.get(true).getPublishedFile(filename))) {
+            return;
+        }
+
+        BuildManifest.begin(output);
+        long start = System.nanoTime();
+        try {
+            buildLandingPageContent(filename);
+        } finally {
+            RunMetrics.recordStage("content", start);
+            BuildManifest.end();
+        }
+    }
+
+    private void buildLandingPageContent(String filename) {
         Document doc = TripUtils.getXmlDocument("/adventures", "/data/", "listing-page-headers.xml");
 
         if (doc != null) {
-            NodeList pages = doc.getElementsByTagName("page");
-            Map<String, Object> map = new LinkedHashMap<>();
-            Map<String, Object> typeContent;
-
-            for (int i = 0; i < pages.getLength(); i++) {
-                Map<String, Object> item = new LinkedHashMap<>();
-                Element ele = (Element) pages.item(i);
-                Node nameNode = ele.getElementsByTagName("name").item(0);
-                Node metaTitleNode = ele.getElementsByTagName("meta_title").item(0);
-                Node metaDescNode = ele.getElementsByTagName("meta_description").item(0);
-                Node analyticsNode = ele.getElementsByTagName("analytics_page_tag").item(0);
-                Node pageHeadingNode = ele.getElementsByTagName("page_heading").item(0);
-                Node headerImageNode = ele.getElementsByTagName("header_image").item(0);
-                Node overviewNode = ele.getElementsByTagName("overview_text").item(0);
-
-                String type = nameNode.getAttributes().getNamedItem("type").getNodeValue();
-                String name = nameNode.getTextContent();
-                item.put("metaTitle", metaTitleNode.getTextContent());
-                item.put("metaDescription", metaDescNode.getTextContent());
-                item.put("analyticsTag", analyticsNode.getTextContent());
-                item.put("headText", pageHeadingNode.getTextContent());
-                List<String> hero = new ArrayList<>();
-                hero.add(headerImageNode.getTextContent());
-                item.put("heroImages", hero);
-
-                String intro = "";
-                String readMore = "";
-
-                if (overviewNode.hasChildNodes()) {
-                    NodeList list = overviewNode.getChildNodes();
-                    for (int j = 0; j < list.getLength(); j++) {
-                        Node node = list.item(j);
-                        String pClass = "";
-                        String text = "";
-
-                        if (node.getAttributes() != null) {
-                            if (node.getAttributes().getNamedItem("class") != null) {
-                                pClass = node.getAttributes().getNamedItem("class").getNodeValue();
-                            }
-                            text = TripUtils.nodeToString(node).replaceAll("\\r|\\n|\\t", "");
-                        } else {
-                            text = TripUtils.nodeToString(node).replaceAll("\\r|\\n|\\t", "");
-                        }
+            try {
+                TripUtils.writeJsonToFile(filename, buildLandingPages(doc), true);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-                        if (pClass.equals("intro")) {
-                            intro += text;
-                        } else {
-                            readMore += text;
+    /**
+     * Builds the landing page content from listing-page-headers.xml.
+     */
+    JSONObject buildLandingPages(Document doc) {
+        NodeList pages = doc.getElementsByTagName("page");
+        Map<String, Object> map = new LinkedHashMap<>();
+        Map<String, Object> typeContent;
+
+        for (int i = 0; i < pages.getLength(); i++) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            Element ele = (Element) pages.item(i);
+            Node nameNode = ele.getElementsByTagName("name").item(0);
+            Node metaTitleNode = ele.getElementsByTagName("meta_title").item(0);
+            Node metaDescNode = ele.getElementsByTagName("meta_description").item(0);
+            Node analyticsNode = ele.getElementsByTagName("analytics_page_tag").item(0);
+            Node pageHeadingNode = ele.getElementsByTagName("page_heading").item(0);
+            Node headerImageNode = ele.getElementsByTagName("header_image").item(0);
+            Node overviewNode = ele.getElementsByTagName("overview_text").item(0);
+
+            String type = nameNode.getAttributes().getNamedItem("type").getNodeValue();
+            String name = nameNode.getTextContent();
+            item.put("metaTitle", metaTitleNode.getTextContent());
+            item.put("metaDescription", metaDescNode.getTextContent());
+            item.put("analyticsTag", analyticsNode.getTextContent());
+            item.put("headText", pageHeadingNode.getTextContent());
+            List<String> hero = new ArrayList<>();
+            hero.add(headerImageNode.getTextContent());
+            item.put("heroImages", hero);
+
+            String intro = "";
+            String readMore = "";
+
+            if (overviewNode.hasChildNodes()) {
+                NodeList list = overviewNode.getChildNodes();
+                for (int j = 0; j < list.getLength(); j++) {
+                    Node node = list.item(j);
+                    String pClass = "";
+                    String text = "";
+
+                    if (node.getAttributes() != null) {
+                        if (node.getAttributes().getNamedItem("class") != null) {
+                            pClass = node.getAttributes().getNamedItem("class").getNodeValue();
                         }
+                        text = MarkupWriter.toString(node, MarkupWriter.Whitespace.STRIP);
+                    } else {
+                        text = MarkupWriter.toString(node, MarkupWriter.Whitespace.STRIP);
                     }
-                }
 
-                item.put("description", intro);
-                item.put("readMore", readMore);
+                    if (pClass.equals("intro")) {
+                        intro += text;
+                    } else {
+                        readMore += text;
+                    }
+                }
+            }
 
-                type = normalizeType(type);
-                name = normalizeName(name);
+            item.put("description", intro);
+            item.put("readMore", readMore);
 
-                if (map.containsKey(type)) {
-                    typeContent = (LinkedHashMap) map.get(type);
-                } else {
-                    typeContent = new LinkedHashMap<>();
-                }
+            type = normalizeType(type);
+            name = normalizeName(name);
 
-                typeContent.put(name, item);
-                map.put(type, typeContent);
+            if (map.containsKey(type)) {
+                typeContent = (LinkedHashMap) map.get(type);
+            } else {
+                typeContent = new LinkedHashMap<>();
             }
 
-            try {
-                TripUtils.writeJsonToFile("landingPages.json", new JSONObject(map), true);
-            } catch (IOException e) {
-                e.printStackTrace();
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
+            typeContent.put(name, item);
+            map.put(type, typeContent);
         }
+
+        return new JSONObject(map);
     }
 
     private String normalizeType(String type) {
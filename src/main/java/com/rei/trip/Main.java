@@ -1,20 +1,262 @@
 package com.rei.trip;
 
 import com.rei.trip.exception.DataBuilderException;
+import com.rei.trip.util.BuildManifest;
+import com.rei.trip.util.DocumentCache;
+import com.rei.trip.util.DocumentSource;
+import com.rei.trip.util.FetchExecutor;
+import com.rei.trip.util.HttpCache;
+import com.rei.trip.util.HttpDocumentSource;
+import com.rei.trip.util.HttpTransport;
+import com.rei.trip.util.JsonFileWriter;
+import com.rei.trip.util.MirrorDocumentSource;
+import com.rei.trip.util.OutputPublisher;
+import com.rei.trip.util.RecordingDocumentSource;
+import com.rei.trip.util.RunMetrics;
+import com.rei.trip.util.TripConstants;
+import com.rei.trip.util.TripUtils;
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class Main {
 
     public static void main(String[] args) {
+        int parallelism = TripConstants.FETCH_PARALLELISM;
+        int perHostLimit = TripConstants.FETCH_PER_HOST_LIMIT;
+        int connectTimeout = TripConstants.HTTP_CONNECT_TIMEOUT;
+        int readTimeout = TripConstants.HTTP_READ_TIMEOUT;
+        int retries = TripConstants.HTTP_MAX_RETRIES;
+        boolean httpCache = true;
+        String httpCachePath = TripConstants.HTTP_CACHE_PATH;
+        long httpCacheSize = TripConstants.HTTP_CACHE_MAX_SIZE;
+        boolean httpCacheCompress = false;
+        boolean fullRebuild = false;
+        String manifestPath = null;
+        int pipelineDepth = TripConstants.PIPELINE_DEPTH;
+        boolean lowMemory = false;
+        List<String> regions = new ArrayList<>();
+        List<String> tripIds = new ArrayList<>();
+        int shard = 0;
+        int shards = 1;
+        TripSelector.ShardBy shardBy = TripSelector.ShardBy.TRIP;
+        List<String> mergeDirs = null;
+        String mirrorPath = null;
+        String recordPath = null;
+        String docBase = TripConstants.DOC_BASE;
+        String outputDir = null;
+        int watchInterval = 0;
+        int hookPort = 0;
+        boolean minify = false;
+        boolean precompress = false;
+
+        for (String arg : args) {
+            if (arg.startsWith("--parallelism=")) {
+                parallelism = Integer.parseInt(arg.substring("--parallelism=".length()));
+            } else if (arg.startsWith("--per-host=")) {
+                perHostLimit = Integer.parseInt(arg.substring("--per-host=".length()));
+            } else if (arg.startsWith("--connect-timeout-ms=")) {
+                connectTimeout = Integer.parseInt(arg.substring("--connect-timeout-ms=".length()));
+            } else if (arg.startsWith("--read-timeout-ms=")) {
+                readTimeout = Integer.parseInt(arg.substring("--read-timeout-ms=".length()));
+            } else if (arg.startsWith("--retries=")) {
+                retries = Integer.parseInt(arg.substring("--retries=".length()));
+            } else if (arg.equals("--no-http-cache")) {
+                httpCache = false;
+            } else if (arg.startsWith("--http-cache-dir=")) {
+                httpCachePath = arg.substring("--http-cache-dir=".length());
+            } else if (arg.startsWith("--http-cache-size-mb=")) {
+                httpCacheSize = Long.parseLong(arg.substring("--http-cache-size-mb=".length())) * 1024 * 1024;
+            } else if (arg.equals("--http-cache-compress")) {
+                httpCacheCompress = true;
+            } else if (arg.equals("--full")) {
+                fullRebuild = true;
+            } else if (arg.startsWith("--manifest=")) {
+                manifestPath = arg.substring("--manifest=".length());
+            } else if (arg.startsWith("--mirror=")) {
+                mirrorPath = arg.substring("--mirror=".length());
+            } else if (arg.startsWith("--record=")) {
+                recordPath = arg.substring("--record=".length());
+            } else if (arg.startsWith("--doc-base=")) {
+                docBase = arg.substring("--doc-base=".length());
+            } else if (arg.startsWith("--output-dir=")) {
+                outputDir = arg.substring("--output-dir=".length());
+            } else if (arg.startsWith("--pipeline-depth=")) {
+                pipelineDepth = Integer.parseInt(arg.substring("--pipeline-depth=".length()));
+            } else if (arg.equals("--low-memory")) {
+                lowMemory = true;
+            } else if (arg.startsWith("--region=")) {
+                regions.addAll(Arrays.asList(arg.substring("--region=".length()).split(",")));
+            } else if (arg.startsWith("--trip=")) {
+                tripIds.addAll(Arrays.asList(arg.substring("--trip=".length()).split(",")));
+            } else if (arg.startsWith("--shard=")) {
+                String[] shardArg = arg.substring("--shard=".length()).split("/");
+                shard = Integer.parseInt(shardArg[0]);
+                shards = Integer.parseInt(shardArg[1]);
+            } else if (arg.startsWith("--shard-by=")) {
+                shardBy = TripSelector.ShardBy.valueOf(arg.substring("--shard-by=".length()).toUpperCase());
+            } else if (arg.startsWith("--merge=")) {
+                mergeDirs = Arrays.asList(arg.substring("--merge=".length()).split(","));
+            } else if (arg.equals("--watch")) {
+                watchInterval = TripConstants.WATCH_INTERVAL;
+            } else if (arg.startsWith("--watch=")) {
+                watchInterval = Integer.parseInt(arg.substring("--watch=".length()));
+            } else if (arg.equals("--minify")) {
+                minify = true;
+            } else if (arg.equals("--precompress")) {
+                precompress = true;
+            } else if (arg.startsWith("--hook-port=")) {
+                hookPort = Integer.parseInt(arg.substring("--hook-port=".length()));
+            } else {
+                System.out.println("Unknown option: " + arg);
+            }
+        }
+        TripSelector selector = new TripSelector(regions, tripIds, shard, shards, shardBy);
+        if (mergeDirs != null && selector.isPartial()) {
+            System.out.println("--merge builds every trip, it cannot be combined with --shard, --region or --trip");
+            return;
+        }
+        if (watchInterval > 0 && (mergeDirs != null || selector.isPartial())) {
+            System.out.println("--watch builds every trip, it cannot be combined with --merge, --shard, --region or --trip");
+            return;
+        }
+        if (selector.isSharded()) {
+            // a shard is a partial tree: it is published apart from the live one, with its own manifest
+            if (outputDir == null) {
+                System.out.println("--shard needs --output-dir, a shard must not be published over the live output");
+                return;
+            }
+            if (manifestPath == null) {
+                manifestPath = new File(outputDir, new File(TripConstants.BUILD_MANIFEST_PATH).getName()).getPath();
+            } else if (new File(manifestPath).getAbsoluteFile().equals(
+                    new File(TripConstants.BUILD_MANIFEST_PATH).getAbsoluteFile())) {
+                System.out.println("--shard needs its own --manifest, not the one of the live output");
+                return;
+            }
+        } else if (manifestPath == null) {
+            manifestPath = TripConstants.BUILD_MANIFEST_PATH;
+        }
+        FetchExecutor.configure(parallelism);
+        HttpTransport.configure(perHostLimit, connectTimeout, readTimeout, retries);
+        HttpCache.configure(httpCache, httpCachePath, httpCacheSize, httpCacheCompress);
+        if (outputDir != null) {
+            OutputPublisher.configure(outputDir);
+        }
+        JsonFileWriter.configure(minify);
+        OutputPublisher.setPrecompress(precompress);
+        try {
+            DocumentSource source = mirrorPath != null ? new MirrorDocumentSource(mirrorPath)
+                    : new HttpDocumentSource(docBase);
+            if (recordPath != null) {
+                source = new RecordingDocumentSource(source, recordPath);
+            }
+            TripUtils.setDocumentSource(source);
+        } catch (IOException e) {
+            System.out.println("Unable to open document source: " + e.getMessage());
+            return;
+        }
+
         try {
+            if (watchInterval > 0) {
+                // the parsed trips stay warm between cycles, unless memory is short
+                TripSource.keepParsed(!lowMemory);
+                final boolean full = fullRebuild;
+                final int depth = pipelineDepth;
+                final boolean low = lowMemory;
+                final String manifest = manifestPath;
+                // --full rebuilds the first cycle only
+                new TripWatcher(watchInterval * 1000L, hookPort).run((cycleSelector, first) ->
+                        build(manifest, full && first, depth, low, cycleSelector, null));
+            } else {
+                build(manifestPath, fullRebuild, pipelineDepth, lowMemory, selector, mergeDirs);
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to start watch: " + e.getMessage());
+        } finally {
+            TripSource.keepParsed(false);
+            FetchExecutor.shutdown();
+            try {
+                TripUtils.getDocumentSource().close();
+            } catch (IOException e) {
+                System.out.println("Unable to close document source: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs a build: the selected trips, or the merge of shard outputs, and the content, published
+     * together. Returns the index of the trips, or null if the build failed.
+     */
+    private static TripIndex build(String manifestPath, boolean fullRebuild, int pipelineDepth, boolean lowMemory,
+                                   TripSelector selector, List<String> mergeDirs) {
+        DocumentCache.clear();
+        RunMetrics.begin();
+        BuildManifest.load(manifestPath, fullRebuild);
+        boolean published = false;
+        try {
+            // a partial run builds no content, so the published content is left as it is
+            OutputPublisher.beginAll(!selector.isPartial());
+
             // trip data
-            TripDataBuilder builder = new TripDataBuilder();
-            builder.buildAllTrips();
+            TripDataBuilder builder = new TripDataBuilder(pipelineDepth, lowMemory, selector);
+            if (mergeDirs != null) {
+                builder.mergeShards(mergeDirs);
+            } else {
+                builder.buildAllTrips();
+            }
 
             // content
-            ContentBuilder contentBuilder = new ContentBuilder();
-            contentBuilder.buildLandingPageContent();
+            if (!selector.isPartial()) {
+                ContentBuilder contentBuilder = new ContentBuilder();
+                contentBuilder.buildLandingPageContent();
+            }
+
+            if (selector.isPartial() && !selector.isSharded()) {
+                // rebuilt in place: everything else stays as published, whether the manifest lists it or not
+                BuildManifest.keepAll();
+                OutputPublisher.get(false).carryOverPublished();
+            }
+            long start = System.nanoTime();
+            OutputPublisher.publishAll(BuildManifest.getOutputs());
+            BuildManifest.save();
+            RunMetrics.recordStage("publish", start);
+            published = true;
+            return builder.getTripIndex();
         } catch (DataBuilderException e) {
             System.out.println(e.getMessage());
+        } catch (IOException e) {
+            System.out.println("Unable to publish output: " + e.getMessage());
+        } catch (RuntimeException e) {
+            System.out.println("Build failed: " + e);
+            e.printStackTrace();
+        } finally {
+            // a release that was not published is dropped
+            OutputPublisher.abortAll();
+            if (!published) {
+                RunMetrics.recordFailedRun();
+            }
+            writeRunMetrics();
+            System.out.println(DocumentCache.getStats());
+            System.out.println(HttpTransport.getStats());
+            System.out.println(HttpCache.getStats());
+            System.out.println(OutputPublisher.getStats());
+        }
+        return null;
+    }
+
+    /**
+     * Writes the metrics of the run, published or failed, in place into the published trip data,
+     * once everything else is done.
+     */
+    private static void writeRunMetrics() {
+        try {
+            TripUtils.writeJsonToFile(TripConstants.RUN_METRICS_FILENAME, RunMetrics.toJson());
+        } catch (IOException | JSONException e) {
+            System.out.println("Unable to write run metrics: " + e.getMessage());
         }
     }
 }
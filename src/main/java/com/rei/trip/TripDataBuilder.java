@@ -1,11 +1,20 @@
 package com.rei.trip;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rei.trip.exception.DataBuilderException;
+import com.rei.trip.util.BuildManifest;
+import com.rei.trip.util.CrossSellListReader;
+import com.rei.trip.util.DocumentCache;
+import com.rei.trip.util.MarkupWriter;
+import com.rei.trip.util.OutputPublisher;
+import com.rei.trip.util.ProgramManagerIndex;
+import com.rei.trip.util.RunMetrics;
 import com.rei.trip.util.TripConstants;
+import com.rei.trip.util.TripListReader;
+import com.rei.trip.util.TripPipeline;
 import com.rei.trip.util.TripUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -13,13 +22,13 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import java.io.*;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 /**
@@ -29,74 +38,824 @@ import java.util.stream.Collectors;
  * @author sahan
  */
 public class TripDataBuilder {
-    private Map<String, JSONObject> tripJsons;
-    private Map<String, String> tripXmls;
+    /**
+     * Fields of the basic json indexed in facetIndex.json, and the departure years of tripDates.
+     */
+    private static final String[] FACETS = {
+        "region", "activityLevel", "activities", "primaryActivities", "destinationTypes", "tags"
+    };
+    private static final String DEPARTURE_YEARS = "departureYears";
+    private static final String[] CARD_FIELDS = {
+        "tripId", "tripTitle", "region", "cardImageUrl", "days", "activityLevel", "price"
+    };
+
+    private Map<String, TripSource> tripSources = new ConcurrentHashMap<>();
+    private TripIndexCollector<Map<String, Set<String>>> tripFacets;
+    private TripIndexCollector<List<List<String>>> tripDepartures;
+    private TripIndexCollector<Map<String, Object>> tripCards;
+    private TripIndex tripIndex;
     private List<String> extensions;
-    private JSONObject list;
+    private final int pipelineDepth;
+    private final boolean lowMemory;
+    private final TripSelector selector;
+    private TripPipeline pipeline;
+    private Clock clock = Clock.system(ZoneId.of(TripConstants.SITE_TIME_ZONE));
 
     public TripDataBuilder() {
+        this(TripConstants.PIPELINE_DEPTH);
+    }
+
+    public TripDataBuilder(int pipelineDepth) {
+        this(pipelineDepth, false);
     }
 
     /**
-     * Process a xml to json.
+     * @param lowMemory drop the documents of each trip from the document cache once the trip is built,
+     *                  so the heap does not grow with the catalog
+     */
+    public TripDataBuilder(int pipelineDepth, boolean lowMemory) {
+        this(pipelineDepth, lowMemory, TripSelector.ALL);
+    }
+
+    /**
+     * @param selector the trips to build
+     */
+    public TripDataBuilder(int pipelineDepth, boolean lowMemory, TripSelector selector) {
+        this.pipelineDepth = pipelineDepth;
+        this.lowMemory = lowMemory;
+        this.selector = selector;
+        resetIndexes();
+    }
+
+    /**
+     * Process a xml to json. A partial selection builds only the trips selected; the trip list and
+     * cross-sell list are left to a full run or, for shards, to mergeShards.
      *
      * @throws DataBuilderException
      */
     public void buildAllTrips() throws DataBuilderException {
         extensions = new ArrayList<>();
-        list = buildTripList();
+        resetIndexes();
+        buildTripList();
+        if (!selector.isPartial()) {
+            processExtension();
+        }
+    }
 
+    /**
+     * Builds the trip list from xml. Each trip goes through the pipeline as soon as the list names it:
+     * its xmls are fetched, its basic, detail and gallery json built and written while the rest of
+     * the catalog is still being discovered.
+     */
+    private void buildTripList() throws DataBuilderException {
+        String listUrl = TripConstants.DOC_BASE + TripConstants.DOC_TRIP_LIST;
+        tripSources = new ConcurrentHashMap<>();
+        tripIndex = new TripIndex();
+
+        List<String> paths = new ArrayList<>();
+        // trip infos by position in the trip list, set by the transform of each trip
+        List<JSONObject> tripInfos = Collections.synchronizedList(new ArrayList<>());
+        List<String> regionNames = new ArrayList<>();
+        List<Integer> regionSizes = new ArrayList<>();
+
+        pipeline = new TripPipeline(pipelineDepth, TripConstants.PIPELINE_WRITE_THREADS);
         try {
-            buildTripData(list.getJSONArray("tripList"));
+            long start = System.nanoTime();
+            byte[] tripList = TripUtils.getDocumentBytes(listUrl);
+            String tripListHash = TripUtils.hash(tripList);
+            // discovery is the read of the trip list, once; each trip is then timed by its stages
+            RunMetrics.recordStage("discovery", start);
+            TripListReader.read(new ByteArrayInputStream(tripList),
+                    new TripListReader.Handler() {
+                        @Override
+                        public void trip(String regionName, String path) {
+                            String region = TripUtils.toCamelCase(processRegionName(regionName));
+                            paths.add(path);
+                            int position = tripInfos.size();
+                            tripInfos.add(null);
+                            if (!selector.selectsRegion(region)) {
+                                return;
+                            }
+                            try {
+                                pipeline.submit(() -> fetchTrip(region, path), trip -> {
+                                    tripInfos.set(position, trip);
+                                    buildTrip(region, trip);
+                                });
+                            } catch (DataBuilderException e) {
+                                throw new IllegalStateException(e.getMessage(), e);
+                            }
+                        }
+
+                        @Override
+                        public void region(String regionName, List<String> regionPaths) {
+                            regionNames.add(regionName);
+                            regionSizes.add(regionPaths.size());
+                        }
+                    });
+            if (lowMemory) {
+                DocumentCache.release(listUrl);
+            }
+
+            pipeline.finish();
+
+            List<JSONObject> trips = new ArrayList<>(tripInfos);
+            if (selector.isSharded()) {
+                writeShardManifest(tripListHash, regionNames, regionSizes, paths, trips);
+            } else if (!selector.isPartial()) {
+                writeTripList(regionNames, regionSizes, paths, trips);
+            } else {
+                // rebuilt in place: the other trips keep their published facets
+                writeFacetIndex(null);
+                writeCards(null, writeDepartureIndex(null));
+            }
         } catch (JSONException e) {
             throw new DataBuilderException(e.getMessage());
+        } catch (IOException e) {
+            throw new DataBuilderException(e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new DataBuilderException(e.getMessage());
+        } finally {
+            pipeline.cancel();
+            pipeline = null;
         }
     }
 
     /**
-     * Builds the trip list from xml.
+     * Writes tripList.json from the trips of the trip list, in its order, and indexes them for the cross-sell list.
      */
-    private JSONObject buildTripList() throws DataBuilderException {
-        String listUrl = TripConstants.DOC_BASE + TripConstants.DOC_TRIP_LIST;
-        tripJsons = new HashMap<>();
-        tripXmls = new HashMap<>();
+    private void writeTripList(List<String> regionNames, List<Integer> regionSizes, List<String> paths,
+                               List<JSONObject> trips) throws JSONException, IOException {
+        JSONArray regionsNew = new JSONArray();
+        Iterator<JSONObject> results = trips.iterator();
+        for (int i = 0; i < regionNames.size(); i++) {
+            JSONObject regionNew = new JSONObject();
+            JSONArray tripArrayNew = new JSONArray();
+            for (int j = 0; j < regionSizes.get(i); j++) {
+                JSONObject tripInfo = results.next();
+                if (tripInfo.getString("tripId").equals("oar")) {
+                    System.out.println("Skip to generate trip for trip id : OAR");
+                } else {
+                    tripArrayNew.put(tripInfo);
+                }
+            }
+            String regionName = TripUtils.toCamelCase(processRegionName(regionNames.get(i)));
+            for (int j = 0; j < tripArrayNew.length(); j++) {
+                JSONObject trip = tripArrayNew.getJSONObject(j);
+                tripIndex.add(regionName, trip.getString("path"), trip.getString("tripId"),
+                        trip.getString("tripLegacyId"));
+            }
+            regionNew.put("regionName", regionName);
+            regionNew.put("trips", tripArrayNew);
+            regionsNew.put(regionNew);
+        }
+
+        JSONObject tripListNew = new JSONObject();
+        tripListNew.put("tripList", regionsNew);
+
+        Map<String, String> tripRegions = new LinkedHashMap<>();
+        for (int i = 0; i < regionsNew.length(); i++) {
+            JSONArray regionTrips = regionsNew.getJSONObject(i).getJSONArray("trips");
+            for (int j = 0; j < regionTrips.length(); j++) {
+                tripRegions.put(regionTrips.getJSONObject(j).getString("tripId"),
+                        regionsNew.getJSONObject(i).getString("regionName"));
+            }
+        }
+        writeFacetIndex(tripRegions);
+        writeCards(tripRegions, writeDepartureIndex(tripRegions));
+
+        String output = TripConstants.TRIP_LIST_FILENAME;
+        if (!BuildManifest.isUpToDate(output, OutputPublisher.get(false).getPublishedFile(output))) {
+            BuildManifest.begin(output);
+            try {
+                TripUtils.recordDocument(TripConstants.DOC_BASE + TripConstants.DOC_TRIP_LIST);
+                for (String path : paths) {
+                    TripUtils.recordDocument(TripConstants.DOC_BASE + path);
+                }
+                TripUtils.writeJsonToFile(output, tripListNew);
+            } finally {
+                BuildManifest.end();
+            }
+        }
+    }
+
+    /**
+     * Starts the facets, departures and cards of a new build.
+     */
+    private void resetIndexes() {
+        tripFacets = new TripIndexCollector<>("facets", this::getFacets,
+                trip -> readFacets(trip.getJSONObject("facets")), this::readFacetIndex, this::readBasicJson);
+        tripDepartures = new TripIndexCollector<>("departures", this::getDepartures,
+                trip -> readDepartures(trip.getJSONArray("departures")), this::readDepartureIndex, this::readBasicJson);
+        tripCards = new TripIndexCollector<>("card", this::getCard,
+                trip -> readCard(trip.getJSONObject("card")), this::readCards, this::readBasicJson);
+    }
+
+    /**
+     * Leaves a trip whose basic json failed to build out of the facets, departures and cards.
+     */
+    private void failIndexes(String tripId) {
+        tripFacets.fail(tripId);
+        tripDepartures.fail(tripId);
+        tripCards.fail(tripId);
+    }
+
+    /**
+     * Writes facetIndex.json: for each facet value the sorted ids of the trips that have it, with
+     * their count, so listing pages filter by intersecting a few small sets. The facets of the
+     * trips are collected by TripIndexCollector.
+     *
+     * @param tripRegions region names by trip id of the whole trip list, or null to index the
+     *                    trips of the published index and those built in this run
+     */
+    private void writeFacetIndex(Map<String, String> tripRegions) throws IOException, JSONException {
+        Map<String, Map<String, Set<String>>> trips = tripFacets.collect(tripRegions);
+        Map<String, Map<String, Set<String>>> facets = new TreeMap<>();
+        for (Map.Entry<String, Map<String, Set<String>>> trip : trips.entrySet()) {
+            for (Map.Entry<String, Set<String>> facet : trip.getValue().entrySet()) {
+                Map<String, Set<String>> facetValues = facets.computeIfAbsent(facet.getKey(), key -> new TreeMap<>());
+                for (String value : facet.getValue()) {
+                    facetValues.computeIfAbsent(value, key -> new TreeSet<>()).add(trip.getKey());
+                }
+            }
+        }
+
+        JSONObject facetsJson = new JSONObject();
+        for (Map.Entry<String, Map<String, Set<String>>> facet : facets.entrySet()) {
+            JSONObject valuesJson = new JSONObject();
+            for (Map.Entry<String, Set<String>> value : facet.getValue().entrySet()) {
+                JSONObject valueJson = new JSONObject();
+                valueJson.put("count", value.getValue().size());
+                valueJson.put("trips", new JSONArray(value.getValue()));
+                valuesJson.put(value.getKey(), valueJson);
+            }
+            facetsJson.put(facet.getKey(), valuesJson);
+        }
+        JSONObject facetIndex = new JSONObject();
+        facetIndex.put("trips", trips.size());
+        facetIndex.put("facets", facetsJson);
+        TripUtils.writeJsonToFile(TripConstants.FACET_INDEX_FILENAME, facetIndex);
+    }
+
+    /**
+     * Reads the published facet index back into the facets of each trip, empty if there is none.
+     */
+    private Map<String, Map<String, Set<String>>> readFacetIndex() {
+        Map<String, Map<String, Set<String>>> trips = new HashMap<>();
+        File file = OutputPublisher.get(false).getPublishedFile(TripConstants.FACET_INDEX_FILENAME);
+        if (!file.exists()) {
+            return trips;
+        }
 
         try {
-            JSONObject tripListOld = TripUtils.getJsonFromXml(TripUtils.getFileContent(listUrl))
-                    .getJSONObject("tripList");
-            JSONArray regionsOld = tripListOld.getJSONArray("region");
-            JSONArray regionsNew = new JSONArray();
-
-            for (int i = 0; i < regionsOld.length(); i++) {
-                JSONObject regionOld = regionsOld.getJSONObject(i);
-                JSONObject regionNew = new JSONObject();
-                JSONObject tripArrayObj = regionOld.getJSONObject("trips");
-                JSONArray tripArrayOld = tripArrayObj.getJSONArray("trip");
-                JSONArray tripArrayNew = new JSONArray();
-                for (int j = 0; j < tripArrayOld.length(); j++) {
-                    JSONObject tripInfo = getTripId(tripArrayOld.getString(j));
-                    if (tripInfo.getString("tripId").equals("oar")) {
-                        System.out.println("Skip to generate trip for trip id : OAR");
-                    } else {
-                        tripArrayNew.put(tripInfo);
+            JSONObject facets = new JSONObject(FileUtils.readFileToString(file, "UTF-8")).getJSONObject("facets");
+            Iterator<?> facetNames = facets.keys();
+            while (facetNames.hasNext()) {
+                String facet = (String) facetNames.next();
+                JSONObject values = facets.getJSONObject(facet);
+                Iterator<?> valueNames = values.keys();
+                while (valueNames.hasNext()) {
+                    String value = (String) valueNames.next();
+                    JSONArray tripIds = values.getJSONObject(value).getJSONArray("trips");
+                    for (int i = 0; i < tripIds.length(); i++) {
+                        trips.computeIfAbsent(tripIds.getString(i), key -> new TreeMap<>())
+                                .computeIfAbsent(facet, key -> new TreeSet<>()).add(value);
                     }
                 }
-                String regionName = processRegionName(regionOld.getString("regionName"));
-                regionNew.put("regionName", TripUtils.toCamelCase(regionName));
-                regionNew.put("trips", tripArrayNew);
-                regionsNew.put(regionNew);
             }
+        } catch (IOException e) {
+            System.out.println("Unable to read facet index: " + e.getMessage());
+        } catch (JSONException e) {
+            System.out.println("Unable to read facet index: " + e.getMessage());
+        }
+        return trips;
+    }
 
-            JSONObject tripListNew = new JSONObject();
-            tripListNew.put("tripList", regionsNew);
-            TripUtils.writeJsonToFile(TripConstants.TRIP_LIST_FILENAME, tripListNew);
+    /**
+     * Reads the basic json of a trip, the one built in this run or the published one, or returns
+     * null if there is none.
+     */
+    private JSONObject readBasicJson(String regionName, String tripId) throws IOException, JSONException {
+        File file = OutputPublisher.get(false).getCurrentFile(getBasicOutput(regionName, tripId));
+        if (!file.exists()) {
+            return null;
+        }
+        return new JSONObject(FileUtils.readFileToString(file, "UTF-8"));
+    }
+
+    /**
+     * Reads the facet values of a trip written to a shard manifest.
+     */
+    private Map<String, Set<String>> readFacets(JSONObject json) throws JSONException {
+        Map<String, Set<String>> facets = new TreeMap<>();
+        Iterator<?> names = json.keys();
+        while (names.hasNext()) {
+            String facet = (String) names.next();
+            JSONArray values = json.getJSONArray(facet);
+            Set<String> facetValues = new TreeSet<>();
+            for (int i = 0; i < values.length(); i++) {
+                facetValues.add(values.getString(i));
+            }
+            facets.put(facet, facetValues);
+        }
+        return facets;
+    }
+
+    /**
+     * Gets the facet values of a trip from its basic json.
+     */
+    private Map<String, Set<String>> getFacets(JSONObject basic) throws JSONException {
+        Map<String, Set<String>> facets = new TreeMap<>();
+        for (String facet : FACETS) {
+            Object value = basic.opt(facet);
+            Set<String> values = new TreeSet<>();
+            if (value instanceof JSONArray) {
+                JSONArray array = (JSONArray) value;
+                for (int i = 0; i < array.length(); i++) {
+                    values.add(array.get(i).toString());
+                }
+            } else if (value instanceof Collection) {
+                for (Object item : (Collection<?>) value) {
+                    values.add(item.toString());
+                }
+            } else if (value != null) {
+                values.add(value.toString());
+            }
+            if (!values.isEmpty()) {
+                facets.put(facet, values);
+            }
+        }
+
+        Set<String> years = new TreeSet<>();
+        JSONArray tripDates = basic.optJSONArray("tripDates");
+        for (int i = 0; tripDates != null && i < tripDates.length(); i++) {
+            JSONObject tripDate = tripDates.getJSONObject(i);
+            JSONArray departures = tripDate.optJSONArray("departures");
+            if (tripDate.has("year") && departures != null && departures.length() > 0) {
+                years.add(tripDate.getString("year"));
+            }
+        }
+        if (!years.isEmpty()) {
+            facets.put(DEPARTURE_YEARS, years);
+        }
+        return facets;
+    }
+
+    /**
+     * Writes the departure index under departures/: one file per month with the departures that
+     * start in it, as parallel arrays of trip id, start and end date (yyyy-MM-dd) and sold-out flag
+     * sorted by start date, and months.json with the number of departures of each month. A date
+     * range search reads the files of the months it spans. The departures of the trips are
+     * collected by TripIndexCollector.
+     *
+     * @param tripRegions region names by trip id of the whole trip list, or null to index the
+     *                    trips of the published index and those built in this run
+     * @return the departures indexed, by trip id
+     */
+    private Map<String, List<List<String>>> writeDepartureIndex(Map<String, String> tripRegions)
+            throws IOException, JSONException {
+        Map<String, List<List<String>>> indexed = tripDepartures.collect(tripRegions);
+
+        // tripId, start, end, status by start month
+        Map<String, List<String[]>> months = new TreeMap<>();
+        for (Map.Entry<String, List<List<String>>> trip : indexed.entrySet()) {
+            for (List<String> departure : trip.getValue()) {
+                months.computeIfAbsent(departure.get(0).substring(0, 7), key -> new ArrayList<>())
+                        .add(new String[]{trip.getKey(), departure.get(0), departure.get(1), departure.get(2)});
+            }
+        }
+
+        JSONArray monthList = new JSONArray();
+        for (Map.Entry<String, List<String[]>> month : months.entrySet()) {
+            List<String[]> departures = month.getValue();
+            departures.sort(Comparator.<String[], String>comparing(departure -> departure[1])
+                    .thenComparing(departure -> departure[0]).thenComparing(departure -> departure[2]));
+
+            JSONArray tripIdArray = new JSONArray();
+            JSONArray startArray = new JSONArray();
+            JSONArray endArray = new JSONArray();
+            JSONArray soldOutArray = new JSONArray();
+            for (String[] departure : departures) {
+                tripIdArray.put(departure[0]);
+                startArray.put(departure[1]);
+                endArray.put(departure[2]);
+                soldOutArray.put(departure[3].equals(TripConstants.DEPARTURE_STATUS_SOLD_OUT));
+            }
+            JSONObject monthJson = new JSONObject();
+            monthJson.put("month", month.getKey());
+            monthJson.put("departures", departures.size());
+            monthJson.put("tripIds", tripIdArray);
+            monthJson.put("startDates", startArray);
+            monthJson.put("endDates", endArray);
+            monthJson.put("soldOut", soldOutArray);
+            TripUtils.writeJsonToFile(TripConstants.DEPARTURE_INDEX_PATH + month.getKey() + ".json", monthJson);
+
+            JSONObject monthEntry = new JSONObject();
+            monthEntry.put("month", month.getKey());
+            monthEntry.put("departures", departures.size());
+            monthList.put(monthEntry);
+        }
+        JSONObject monthsJson = new JSONObject();
+        monthsJson.put("months", monthList);
+        TripUtils.writeJsonToFile(TripConstants.DEPARTURE_INDEX_PATH + TripConstants.DEPARTURE_MONTHS_FILENAME,
+                monthsJson);
+        return indexed;
+    }
+
+    /**
+     * Writes the card fields of the trips, projected from their basic json, as <regionName>/cards.json
+     * per region and a catalog-wide cards.json, in trip list order, so a listing page loads one
+     * file. The next departure is the first open one from today in the time zone of the site, taken
+     * from the departure index on every write so it does not go stale. The cards of the trips are
+     * collected by TripIndexCollector.
+     *
+     * @param tripRegions region names by trip id of the whole trip list, or null for the trips of
+     *                    the published cards and those built in this run
+     * @param departures  the departures indexed, by trip id
+     */
+    private void writeCards(Map<String, String> tripRegions, Map<String, List<List<String>>> departures)
+            throws IOException, JSONException {
+        String today = LocalDate.now(clock).toString();
+        JSONArray cards = new JSONArray();
+        Map<String, JSONArray> regionCards = new TreeMap<>();
+        for (Map.Entry<String, Map<String, Object>> trip : tripCards.collect(tripRegions).entrySet()) {
+            String tripId = trip.getKey();
+            Map<String, Object> card = trip.getValue();
+
+            // fields in a fixed order, wherever the card came from
+            Map<String, Object> cardNew = new LinkedHashMap<>();
+            for (String field : CARD_FIELDS) {
+                if (card.containsKey(field)) {
+                    cardNew.put(field, card.get(field));
+                }
+            }
+            List<String> next = null;
+            for (List<String> departure : departures.getOrDefault(tripId, Collections.emptyList())) {
+                if (departure.get(0).compareTo(today) >= 0 && !departure.get(2).equals(TripConstants.DEPARTURE_STATUS_SOLD_OUT)
+                        && (next == null || departure.get(0).compareTo(next.get(0)) < 0)) {
+                    next = departure;
+                }
+            }
+            if (next != null) {
+                Map<String, String> nextDeparture = new LinkedHashMap<>();
+                nextDeparture.put("startDate", next.get(0));
+                nextDeparture.put("endDate", next.get(1));
+                cardNew.put("nextDeparture", nextDeparture);
+            }
+
+            JSONObject cardJson = new JSONObject(cardNew);
+            cards.put(cardJson);
+            regionCards.computeIfAbsent((String) card.get("region"), key -> new JSONArray()).put(cardJson);
+        }
+
+        for (Map.Entry<String, JSONArray> region : regionCards.entrySet()) {
+            JSONObject regionJson = new JSONObject();
+            regionJson.put("cards", region.getValue());
+            TripUtils.writeJsonToFile(region.getKey() + "/" + TripConstants.CARDS_FILENAME, regionJson);
+        }
+        JSONObject cardsJson = new JSONObject();
+        cardsJson.put("cards", cards);
+        TripUtils.writeJsonToFile(TripConstants.CARDS_FILENAME, cardsJson);
+    }
+
+    /**
+     * Reads the published catalog cards back by trip id, in their order, empty if there are none.
+     */
+    private Map<String, Map<String, Object>> readCards() {
+        Map<String, Map<String, Object>> cards = new LinkedHashMap<>();
+        File file = OutputPublisher.get(false).getPublishedFile(TripConstants.CARDS_FILENAME);
+        if (!file.exists()) {
+            return cards;
+        }
+
+        try {
+            JSONArray cardArray = new JSONObject(FileUtils.readFileToString(file, "UTF-8")).getJSONArray("cards");
+            for (int i = 0; i < cardArray.length(); i++) {
+                Map<String, Object> card = readCard(cardArray.getJSONObject(i));
+                card.remove("nextDeparture");
+                cards.put((String) card.get("tripId"), card);
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to read cards: " + e.getMessage());
+        } catch (JSONException e) {
+            System.out.println("Unable to read cards: " + e.getMessage());
+        }
+        return cards;
+    }
+
+    /**
+     * Reads a card written to cards.json or to a shard manifest.
+     */
+    private Map<String, Object> readCard(JSONObject json) throws JSONException {
+        Map<String, Object> card = new LinkedHashMap<>();
+        Iterator<?> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            card.put(key, json.get(key));
+        }
+        return card;
+    }
+
+    /**
+     * Projects the card fields of a trip out of its basic json: tripId, tripTitle, region,
+     * cardImageUrl, days, activityLevel and the default price.
+     */
+    private Map<String, Object> getCard(JSONObject basic) throws JSONException {
+        Map<String, Object> card = new LinkedHashMap<>();
+        card.put("tripId", basic.getString("tripId"));
+        card.put("tripTitle", basic.getString("tripTitle"));
+        card.put("region", basic.getString("region"));
+        card.put("cardImageUrl", basic.getJSONObject("tripGallery").getString("cardImageUrl"));
+        card.put("days", basic.getString("days"));
+        card.put("activityLevel", basic.getString("activityLevel"));
+        JSONArray prices = basic.optJSONArray("price");
+        for (int i = 0; prices != null && i < prices.length(); i++) {
+            JSONObject price = prices.getJSONObject(i);
+            if (price.getString("type").equals("default")) {
+                card.put("price", price.getString("amount"));
+                break;
+            }
+        }
+        return card;
+    }
+
+    /**
+     * Reads the published departure index back into the departures of each trip, empty if there is none.
+     */
+    private Map<String, List<List<String>>> readDepartureIndex() {
+        Map<String, List<List<String>>> trips = new HashMap<>();
+        OutputPublisher publisher = OutputPublisher.get(false);
+        File monthsFile = publisher.getPublishedFile(
+                TripConstants.DEPARTURE_INDEX_PATH + TripConstants.DEPARTURE_MONTHS_FILENAME);
+        if (!monthsFile.exists()) {
+            return trips;
+        }
+
+        try {
+            JSONArray months = new JSONObject(FileUtils.readFileToString(monthsFile, "UTF-8")).getJSONArray("months");
+            for (int i = 0; i < months.length(); i++) {
+                File file = publisher.getPublishedFile(TripConstants.DEPARTURE_INDEX_PATH
+                        + months.getJSONObject(i).getString("month") + ".json");
+                JSONObject month = new JSONObject(FileUtils.readFileToString(file, "UTF-8"));
+                JSONArray tripIds = month.getJSONArray("tripIds");
+                for (int j = 0; j < tripIds.length(); j++) {
+                    trips.computeIfAbsent(tripIds.getString(j), key -> new ArrayList<>()).add(Arrays.asList(
+                            month.getJSONArray("startDates").getString(j), month.getJSONArray("endDates").getString(j),
+                            month.getJSONArray("soldOut").getBoolean(j)
+                                    ? TripConstants.DEPARTURE_STATUS_SOLD_OUT : TripConstants.DEPARTURE_STATUS_OPEN));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to read departure index: " + e.getMessage());
+        } catch (JSONException e) {
+            System.out.println("Unable to read departure index: " + e.getMessage());
+        }
+        return trips;
+    }
+
+    /**
+     * Reads the departures of a trip written to a shard manifest.
+     */
+    private List<List<String>> readDepartures(JSONArray json) throws JSONException {
+        List<List<String>> departures = new ArrayList<>();
+        for (int i = 0; i < json.length(); i++) {
+            JSONArray departure = json.getJSONArray(i);
+            departures.add(Arrays.asList(departure.getString(0), departure.getString(1), departure.getString(2)));
+        }
+        return departures;
+    }
+
+    /**
+     * Gets the departures of a trip from the tripDates of its basic json, as start date, end date
+     * (yyyy-MM-dd) and status. Departures whose dates are not MM/dd/yyyy are left out.
+     */
+    private List<List<String>> getDepartures(JSONObject basic) throws JSONException {
+        List<List<String>> departures = new ArrayList<>();
+        JSONArray tripDates = basic.optJSONArray("tripDates");
+        for (int i = 0; tripDates != null && i < tripDates.length(); i++) {
+            JSONArray schedules = tripDates.getJSONObject(i).optJSONArray("departures");
+            for (int j = 0; schedules != null && j < schedules.length(); j++) {
+                JSONObject schedule = schedules.getJSONObject(j);
+                String start = toIsoDate(schedule.getString("startDate"));
+                String end = toIsoDate(schedule.getString("endDate"));
+                if (start != null && end != null) {
+                    departures.add(Arrays.asList(start, end, schedule.getString("status")));
+                }
+            }
+        }
+        return departures;
+    }
+
+    /**
+     * Converts a Documentum date, MM/dd/yyyy, to yyyy-MM-dd, or returns null if it is not one.
+     */
+    private String toIsoDate(String date) {
+        String[] parts = date.trim().split("/");
+        if (parts.length != 3 || !StringUtils.isNumeric(parts[0]) || !StringUtils.isNumeric(parts[1])
+                || parts[2].length() != 4 || !StringUtils.isNumeric(parts[2])) {
+            return null;
+        }
+        return String.format("%s-%02d-%02d", parts[2], Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    }
+
+    /**
+     * Writes shardManifest.json: the trips this shard built, by position in the trip list, with the
+     * hashes of their xmls, and the regions of the whole trip list.
+     */
+    private void writeShardManifest(String tripListHash, List<String> regionNames, List<Integer> regionSizes,
+                                    List<String> paths, List<JSONObject> trips) throws JSONException, IOException {
+        JSONObject manifest = new JSONObject();
+        manifest.put("shard", selector.getShard());
+        manifest.put("shards", selector.getShards());
+        manifest.put("shardBy", selector.getShardBy().name().toLowerCase());
+        manifest.put("tripListHash", tripListHash);
+
+        JSONArray regions = new JSONArray();
+        List<String> tripRegions = new ArrayList<>();
+        for (int i = 0; i < regionNames.size(); i++) {
+            JSONObject region = new JSONObject();
+            region.put("regionName", regionNames.get(i));
+            region.put("trips", regionSizes.get(i));
+            regions.put(region);
+            tripRegions.addAll(Collections.nCopies(regionSizes.get(i),
+                    TripUtils.toCamelCase(processRegionName(regionNames.get(i)))));
+        }
+        manifest.put("regions", regions);
+
+        JSONArray shardTrips = new JSONArray();
+        for (int i = 0; i < trips.size(); i++) {
+            JSONObject trip = trips.get(i);
+            if (trip != null) {
+                JSONObject shardTrip = copyTripInfo(trip);
+                shardTrip.put("position", i);
+                shardTrip.put("tripXmlHash", TripUtils.getDocumentHash(TripConstants.DOC_BASE + paths.get(i)));
+                // the inputs of the trip outputs, for the manifest of the merge
+                JSONObject outputs = new JSONObject();
+                for (String output : getTripOutputs(tripRegions.get(i), trip.getString("tripId"))) {
+                    Map<String, String> inputs = BuildManifest.getInputs(output);
+                    if (inputs != null) {
+                        outputs.put(output, new JSONObject(inputs));
+                    }
+                }
+                shardTrip.put("outputs", outputs);
+                tripFacets.putShardTrip(shardTrip, tripRegions.get(i));
+                tripDepartures.putShardTrip(shardTrip, tripRegions.get(i));
+                tripCards.putShardTrip(shardTrip, tripRegions.get(i));
+                shardTrips.put(shardTrip);
+            }
+        }
+        manifest.put("trips", shardTrips);
+
+        TripUtils.writeJsonToFile(TripConstants.SHARD_MANIFEST_FILENAME, manifest);
+    }
+
+    /**
+     * Merges the outputs of the shards of a sharded run: copies their trip outputs and builds the
+     * trip list and the cross-sell list from their shard manifests. The result depends only on the
+     * shard manifests, not on the order the shards are given in.
+     *
+     * @param shardDirs the output directories of the shards, each with a tripData tree
+     */
+    public void mergeShards(List<String> shardDirs) throws DataBuilderException {
+        extensions = new ArrayList<>();
+        resetIndexes();
+        tripSources = new ConcurrentHashMap<>();
+        tripIndex = new TripIndex();
+
+        try {
+            JSONObject first = null;
+            JSONObject[] trips = null;
+            File[] shardOf = null;
+            Set<Integer> shards = new HashSet<>();
+
+            for (String shardDir : shardDirs) {
+                File root = new File(shardDir, "tripData");
+                JSONObject manifest = new JSONObject(FileUtils.readFileToString(
+                        new File(root, TripConstants.SHARD_MANIFEST_FILENAME), "UTF-8"));
+                if (first == null) {
+                    first = manifest;
+                    int size = 0;
+                    JSONArray regions = manifest.getJSONArray("regions");
+                    for (int i = 0; i < regions.length(); i++) {
+                        size += regions.getJSONObject(i).getInt("trips");
+                    }
+                    trips = new JSONObject[size];
+                    shardOf = new File[size];
+                } else if (manifest.getInt("shards") != first.getInt("shards")
+                        || !manifest.getString("tripListHash").equals(first.getString("tripListHash"))) {
+                    throw new DataBuilderException("Shard " + shardDir + " was built from another trip list or shard count");
+                }
+                if (!shards.add(manifest.getInt("shard"))) {
+                    throw new DataBuilderException("Shard " + manifest.getInt("shard") + " is given twice");
+                }
+
+                JSONArray shardTrips = manifest.getJSONArray("trips");
+                for (int i = 0; i < shardTrips.length(); i++) {
+                    JSONObject trip = shardTrips.getJSONObject(i);
+                    int position = trip.getInt("position");
+                    if (trips[position] != null) {
+                        throw new DataBuilderException("Trip " + trip.getString("tripId") + " is built by two shards");
+                    }
+                    trips[position] = trip;
+                    shardOf[position] = root;
+                }
+            }
+            if (first == null || shards.size() != first.getInt("shards")) {
+                throw new DataBuilderException("Missing shards: " + shards.size() + " given");
+            }
+
+            // the trip list and trip xmls were read by the shards
+            DocumentCache.putHash(TripConstants.DOC_BASE + TripConstants.DOC_TRIP_LIST, first.getString("tripListHash"));
+
+            List<String> regionNames = new ArrayList<>();
+            List<Integer> regionSizes = new ArrayList<>();
+            JSONArray regions = first.getJSONArray("regions");
+            List<String> paths = new ArrayList<>();
+            List<JSONObject> tripInfos = new ArrayList<>();
+            int position = 0;
+            for (int i = 0; i < regions.length(); i++) {
+                JSONObject region = regions.getJSONObject(i);
+                String regionName = TripUtils.toCamelCase(processRegionName(region.getString("regionName")));
+                regionNames.add(region.getString("regionName"));
+                regionSizes.add(region.getInt("trips"));
+
+                for (int j = 0; j < region.getInt("trips"); j++, position++) {
+                    JSONObject trip = trips[position];
+                    if (trip == null) {
+                        throw new DataBuilderException("No shard built trip " + position + " of the trip list");
+                    }
+                    String tripPath = trip.getString("path");
+                    String tripId = trip.getString("tripId");
+                    String path = tripPath + trip.getString("tripLegacyId") + ".xml";
+                    DocumentCache.putHash(TripConstants.DOC_BASE + path, trip.getString("tripXmlHash"));
+                    paths.add(path);
+                    tripInfos.add(copyTripInfo(trip));
+                    tripFacets.addShardTrip(trip);
+                    tripDepartures.addShardTrip(trip);
+                    tripCards.addShardTrip(trip);
+
+                    JSONObject outputs = trip.optJSONObject("outputs");
+                    for (String output : getTripOutputs(regionName, tripId)) {
+                        File file = new File(shardOf[position], output);
+                        if (file.exists()) {
+                            OutputPublisher.get(false).importFile(output, file);
+                            BuildManifest.imported(output,
+                                    readShardInputs(outputs != null ? outputs.optJSONObject(output) : null),
+                                    shardOf[position], OutputPublisher.get(false).getPublishedFile(""));
+                        }
+                    }
+                }
+            }
 
-            return tripListNew;
+            writeTripList(regionNames, regionSizes, paths, tripInfos);
         } catch (JSONException e) {
             throw new DataBuilderException(e.getMessage());
         } catch (IOException e) {
             throw new DataBuilderException(e.getMessage());
         }
+
+        processExtension();
+    }
+
+    /**
+     * Gets the basic, detail and gallery outputs of a trip.
+     */
+    private String[] getTripOutputs(String regionName, String tripId) {
+        return new String[]{getBasicOutput(regionName, tripId), getDetailOutput(regionName, tripId),
+                getGalleryOutput(regionName, tripId)};
+    }
+
+    /**
+     * Reads the inputs a shard recorded for one of its outputs, or returns null if it recorded none.
+     */
+    private Map<String, String> readShardInputs(JSONObject shardInputs) throws JSONException {
+        if (shardInputs == null) {
+            return null;
+        }
+        Map<String, String> inputs = new HashMap<>();
+        Iterator keys = shardInputs.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            inputs.put(key, shardInputs.getString(key));
+        }
+        return inputs;
+    }
+
+    /**
+     * Gets the index of the trips found by the last build, or null before the first.
+     */
+    public TripIndex getTripIndex() {
+        return tripIndex;
+    }
+
+    /**
+     * Copies the path, tripId and tripLegacyId of a trip, the entry of the trip in tripList.json.
+     */
+    private JSONObject copyTripInfo(JSONObject trip) throws JSONException {
+        JSONObject tripInfo = new JSONObject();
+        tripInfo.put("path", trip.getString("path"));
+        tripInfo.put("tripId", trip.getString("tripId"));
+        tripInfo.put("tripLegacyId", trip.getString("tripLegacyId"));
+        return tripInfo;
     }
 
     private String processRegionName(String regionName) {
@@ -120,13 +879,10 @@ public class TripDataBuilder {
         JSONObject trip = new JSONObject();
 
         try {
-            String tripUrl = TripConstants.DOC_BASE + path;
-            String tripXml = TripUtils.getFileContent(tripUrl);
-            JSONObject tripJson = TripUtils.getJsonFromXml(tripXml).getJSONObject("trip_id");
-            if (tripJson != null) {
-                String tripId = tripJson.getString("trip_id_number");
-                tripJsons.put(tripId, tripJson);
-                tripXmls.put(tripId, tripXml);
+            TripSource source = TripSource.load(TripConstants.DOC_BASE + path);
+            if (source != null) {
+                String tripId = source.getTripId();
+                tripSources.put(tripId, source);
 
                 trip.put("path", getRegionPath(path));
                 trip.put("tripId", tripId);
@@ -141,74 +897,97 @@ public class TripDataBuilder {
         return trip;
     }
 
-    private void buildTripData(JSONArray list) throws DataBuilderException {
-        for (int i = 0; i < list.length(); i++) {
-            try {
-                JSONObject region = list.getJSONObject(i);
-                processBagicInfo(region);
-                processDetailInfo(region);
-                processGallery(region);
-            } catch (JSONException e) {
-                throw new DataBuilderException(e.getMessage());
+    /**
+     * Fetch stage: reads the trip xml and warms the document cache with the trip's other xmls.
+     * Returns null for a trip that is not selected.
+     */
+    private JSONObject fetchTrip(String regionName, String path) throws DataBuilderException {
+        long start = System.nanoTime();
+        JSONObject trip = getTripId(path);
+
+        try {
+            String tripPath = trip.getString("path");
+            String tripId = trip.getString("tripId");
+            if (!selector.selects(regionName, tripId)) {
+                releaseTrip(tripPath, tripId, trip.getString("tripLegacyId"));
+                return null;
             }
+            for (String type : new String[]{TripConstants.DOC_DETAIL_FILE_NAME, TripConstants.DOC_GEAR_FILE_NAME,
+                    TripConstants.DOC_SLIDE_SHOW_FILE_NAME}) {
+                try {
+                    TripUtils.getDocumentBytes(TripConstants.DOC_BASE + tripPath + tripId + type);
+                } catch (IOException e) {
+                    // missing documents are handled by the transform stage
+                }
+            }
+        } catch (JSONException e) {
+            throw new DataBuilderException(e.getMessage());
+        } finally {
+            RunMetrics.recordStage("fetch", start);
         }
-        processExtension();
+
+        return trip;
     }
 
-    private void processBagicInfo(JSONObject region) throws DataBuilderException {
+    /**
+     * Transform stage: builds the basic, detail and gallery json of a trip and hands them to the write stage.
+     */
+    private void buildTrip(String regionName, JSONObject trip) {
+        if (trip == null) {
+            return;
+        }
         try {
-            String regionName = region.getString("regionName");
-            JSONArray regionTrips = region.getJSONArray("trips");
-
-            for (int i = 0; i < regionTrips.length(); i++) {
-                JSONObject trip = regionTrips.getJSONObject(i);
-                String tripPath = trip.getString("path");
-                String tripId = trip.getString("tripId");
-                String tripLegacyId = trip.getString("tripLegacyId");
-
-                createBasicJson(tripPath, regionName, tripId, tripLegacyId, null);
+            String tripPath = trip.getString("path");
+            String tripId = trip.getString("tripId");
+            String tripLegacyId = trip.getString("tripLegacyId");
+            if (tripId.equals("oar")) {
+                return;
             }
+
+            createBasicJson(tripPath, regionName, tripId, tripLegacyId, null);
+            createDetailJson(tripPath, regionName, tripId);
+            createGalleryJson(tripPath, regionName, tripId);
+            releaseTrip(tripPath, tripId, tripLegacyId);
         } catch (JSONException e) {
-            throw new DataBuilderException(e.getMessage());
+            throw new IllegalStateException(e.getMessage(), e);
         }
     }
 
-    private String getShortSummaryFromXml(String tripId) {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(true);
-        String shortSummary = "";
-
-        try {
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(new ByteArrayInputStream(tripXmls.get(tripId).getBytes()));
-            Element ele = (Element) doc.getElementsByTagName("trip_listing_summary").item(0);
-            shortSummary = processTripSummary(ele);
-        } catch (SAXException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (ParserConfigurationException e) {
-            e.printStackTrace();
+    /**
+     * Drops the parsed xml of a built trip. In low-memory mode its documents are dropped from the
+     * document cache too; only their hashes are kept, for the build manifest, and the trip is
+     * found again through the trip index.
+     */
+    private void releaseTrip(String tripPath, String tripId, String tripLegacyId) {
+        tripSources.remove(tripId);
+        if (lowMemory) {
+            DocumentCache.release(TripConstants.DOC_BASE + tripPath + tripLegacyId + ".xml");
+            for (String type : new String[]{TripConstants.DOC_DETAIL_FILE_NAME, TripConstants.DOC_GEAR_FILE_NAME,
+                    TripConstants.DOC_SLIDE_SHOW_FILE_NAME}) {
+                DocumentCache.release(TripConstants.DOC_BASE + tripPath + tripId + type);
+            }
         }
+    }
 
-        return shortSummary;
+    /**
+     * Sets the clock the next departure of the cards is taken from.
+     */
+    void setClock(Clock clock) {
+        this.clock = clock;
     }
 
-    private void processDetailInfo(JSONObject region) throws DataBuilderException {
-        try {
-            String regionName = region.getString("regionName");
-            JSONArray regionTrips = region.getJSONArray("trips");
+    /**
+     * Makes a parsed trip xml available to the transforms, as discovery does.
+     */
+    void addTripSource(String tripId, TripSource source) {
+        tripSources.put(tripId, source);
+    }
 
-            for (int i = 0; i < regionTrips.length(); i++) {
-                JSONObject trip = regionTrips.getJSONObject(i);
-                String tripPath = trip.getString("path");
-                String tripId = trip.getString("tripId");
-                createDetailJson(tripPath, regionName, tripId);
-            }
+    private String getShortSummaryFromXml(String tripId) {
+        Document doc = tripSources.get(tripId).getDocument();
+        Element ele = (Element) doc.getElementsByTagName("trip_listing_summary").item(0);
 
-        } catch (JSONException e) {
-            throw new DataBuilderException(e.getMessage());
-        }
+        return processTripSummary(ele);
     }
 
     private JSONArray processGear(String tripPath, String tripId) throws DataBuilderException {
@@ -226,12 +1005,12 @@ public class TripDataBuilder {
                         String value = child.getTextContent();
                         if (key.equals("selector") &&
                                 !(value.equals("Gear Checklist") || value.equals("Things to Consider"))) {
-                            String content = "";
+                            StringBuilder builder = new StringBuilder();
                             NodeList copy = ele.getElementsByTagName("p");
                             for (int l = 0; l < copy.getLength(); l++) {
-                                content += TripUtils.nodeToString(copy.item(l)).
-                                        replaceAll("\\r|\\n|\\t", "").replaceAll("\\s+", " ");
+                                MarkupWriter.append(builder, copy.item(l), MarkupWriter.Whitespace.STRIP_AND_COLLAPSE);
                             }
+                            String content = builder.toString();
                             if (value.length() > 0 && content.length() > 0) {
                                 JSONObject misc = new JSONObject();
                                 misc.put("title", value);
@@ -250,19 +1029,37 @@ public class TripDataBuilder {
     }
 
     private void processExtension() throws DataBuilderException {
+        String output = "crossSellList.json";
+
+        if (BuildManifest.isUpToDate(output, OutputPublisher.get(false).getPublishedFile(output))) {
+            return;
+        }
+
+        BuildManifest.begin(output);
+        long start = System.nanoTime();
+        try {
+            TripUtils.recordDocument(TripConstants.DOC_BASE + TripConstants.DOC_TRIP_LIST);
+            buildCrossSellList(output);
+        } catch (IOException e) {
+            throw new DataBuilderException(e.getMessage());
+        } finally {
+            RunMetrics.recordStage("extension", start);
+            BuildManifest.end();
+        }
+    }
+
+    private void buildCrossSellList(String output) throws DataBuilderException {
         try {
             String url = TripConstants.DOC_BASE + "/adventures/data/" + TripConstants.DOC_EXT_LIST_FILE_NAME;
-            String doc = TripUtils.getFileContent(url);
-            ObjectMapper mapper = new ObjectMapper();
-            JsonNode json = mapper.readTree(TripUtils.getJsonFromXml(doc).toString())
-                    .get("cross-sell-list").get("cross-sell");
             Map<String, List<Map<String, Object>>> map = new HashMap<>();
             List<Map<String, Object>> extList = new ArrayList<>();
             List<Map<String, Object>> relatedList = new ArrayList<>();
+            // cross-sell trip ids by type, by main trip output
+            Map<String, Map<String, List<String>>> crossSells = new TreeMap<>();
 
-            json.forEach(ext -> {
-                String type = ext.get("type").textValue();
-                String[] code = ext.get("cross-sell-trip").textValue().split("/");
+            CrossSellListReader.read(new ByteArrayInputStream(TripUtils.getDocumentBytes(url)), ext -> {
+                String type = ext.getType();
+                String[] code = ext.getCrossSellTrip().split("/");
                 String region = code[0];
                 String tripLegacyId = code[1];
                 String tripId = getTripIdFromTripList(region, tripLegacyId);
@@ -271,18 +1068,18 @@ public class TripDataBuilder {
                     // no trip data, let's create it.
                     String tripPath = "/adventures/trips/" + region + "/";
                     String tripUrl = TripConstants.DOC_BASE + tripPath + tripLegacyId + ".xml";
-                    String tripXml = null;
                     try {
-                        tripXml = TripUtils.getFileContent(tripUrl);
-                        JSONObject tripJson = TripUtils.getJsonFromXml(tripXml).getJSONObject("trip_id");
-                        if (tripJson != null) {
-                            tripId = tripJson.getString("trip_id_number");
+                        TripSource source = TripSource.load(tripUrl);
+                        if (source != null) {
+                            tripId = source.getTripId();
                             System.out.println("creating extension trip: " + region + ":" + tripId);
-                            tripJsons.put(tripId, tripJson);
-                            tripXmls.put(tripId, tripXml);
-                            createBasicJson(tripPath, getRegionName(region), tripId, tripLegacyId, "regional");
-                            createDetailJson(tripPath, getRegionName(region), tripId);
-                            createGalleryJson(tripPath, getRegionName(region), tripId);
+                            tripSources.put(tripId, source);
+                            String regionName = TripIndex.getRegionName(region);
+                            tripIndex.add(regionName, tripPath, tripId, tripLegacyId);
+                            createBasicJson(tripPath, regionName, tripId, tripLegacyId, "regional");
+                            createDetailJson(tripPath, regionName, tripId);
+                            createGalleryJson(tripPath, regionName, tripId);
+                            releaseTrip(tripPath, tripId, tripLegacyId);
                         }
                     } catch (IOException e) {
                         e.printStackTrace();
@@ -320,15 +1117,27 @@ public class TripDataBuilder {
                 Map<String, Object> item = new HashMap<>();
                 item.put("crossSellTrip", tripId);
                 List<String> mainTrips = new ArrayList<>();
-                JsonNode node = ext.get("main-trips").get("main-trip");
-                if (node.isArray()) {
-                    node.forEach(main -> {
-                        String[] mainCode = main.textValue().split("/");
-                        mainTrips.add(getTripIdByTripLegacyId(mainCode[0], mainCode[1]));
-                    });
-                } else {
-                    String[] mainCode = node.textValue().split("/");
-                    mainTrips.add(getTripIdByTripLegacyId(mainCode[0], mainCode[1]));
+                for (String main : ext.getMainTrips()) {
+                    String[] mainCode = main.split("/");
+                    String mainTripId = getTripIdByTripLegacyId(mainCode[0], mainCode[1]);
+                    mainTrips.add(mainTripId);
+
+                    if (StringUtils.isNotBlank(mainTripId) && StringUtils.isNotBlank(tripId)) {
+                        TripIndex.Entry mainTrip = tripIndex.get(mainTripId);
+                        String mainRegion = mainTrip != null ? mainTrip.getRegionName()
+                                : TripIndex.getRegionName(mainCode[0]);
+                        String mainOutput = getCrossSellOutput(mainRegion, mainTripId);
+                        Map<String, List<String>> types = crossSells.computeIfAbsent(mainOutput, key -> {
+                            Map<String, List<String>> empty = new LinkedHashMap<>();
+                            empty.put("extension", new ArrayList<>());
+                            empty.put("related", new ArrayList<>());
+                            return empty;
+                        });
+                        List<String> ids = types.get(type.equals("related") ? "related" : "extension");
+                        if (!ids.contains(tripId)) {
+                            ids.add(tripId);
+                        }
+                    }
                 }
                 item.put("mainTrips", mainTrips);
 
@@ -344,21 +1153,113 @@ public class TripDataBuilder {
             map.put("related", relatedList);
 
             JSONObject newExtension = new JSONObject(map);
-            TripUtils.writeJsonToFile("crossSellList.json", newExtension);
+            TripUtils.writeJsonToFile(output, newExtension);
+
+            writeTripCrossSells(url, crossSells);
         } catch (Exception e) {
             throw new DataBuilderException(e.getMessage());
         }
     }
 
+    /**
+     * Writes the cross-sell list inverted per main trip, with the card fields of its extension and
+     * related trips inlined, so a trip page reads one small file instead of scanning crossSellList.json.
+     * The files are built as part of crossSellList.json and kept with it when it is up to date.
+     */
+    private void writeTripCrossSells(String crossSellListUrl, Map<String, Map<String, List<String>>> crossSells)
+            throws IOException, JSONException {
+        Map<String, JSONObject> cards = new HashMap<>();
+
+        for (Map.Entry<String, Map<String, List<String>>> crossSell : crossSells.entrySet()) {
+            String output = crossSell.getKey();
+            BuildManifest.begin(output);
+            try {
+                TripUtils.recordDocument(crossSellListUrl);
+                Map<String, Object> tripCrossSell = new LinkedHashMap<>();
+                for (Map.Entry<String, List<String>> type : crossSell.getValue().entrySet()) {
+                    JSONArray trips = new JSONArray();
+                    for (String tripId : type.getValue()) {
+                        JSONObject card = cards.get(tripId);
+                        if (card == null) {
+                            card = getCrossSellCard(tripId);
+                            cards.put(tripId, card);
+                        }
+                        TripIndex.Entry trip = tripIndex.get(tripId);
+                        if (trip != null) {
+                            recordTripXml(trip.getPath(), trip.getTripLegacyId());
+                        }
+                        trips.put(card);
+                    }
+                    tripCrossSell.put(type.getKey(), trips);
+                }
+                TripUtils.writeJsonToFile(output, new JSONObject(tripCrossSell));
+            } finally {
+                BuildManifest.end();
+            }
+        }
+    }
+
+    /**
+     * Gets the card fields of a cross-sell trip from its basic json, the one built in this run or
+     * the published one if it was up to date. Only the trip id is known of trips that have no
+     * basic json, e.g. embedded extensions.
+     */
+    private JSONObject getCrossSellCard(String tripId) throws IOException, JSONException {
+        Map<String, Object> card = new LinkedHashMap<>();
+        card.put("tripId", tripId);
+
+        TripIndex.Entry trip = tripIndex.get(tripId);
+        File file = trip == null ? null
+                : OutputPublisher.get(false).getCurrentFile(getBasicOutput(trip.getRegionName(), tripId));
+        if (file != null && file.exists()) {
+            JSONObject basic = new JSONObject(FileUtils.readFileToString(file, "UTF-8"));
+            card.put("tripTitle", basic.getString("tripTitle"));
+            card.put("region", trip.getRegionName());
+            card.put("cardImageUrl", basic.getJSONObject("tripGallery").getString("cardImageUrl"));
+            card.put("days", basic.getString("days"));
+            String priceFrom = getPriceFrom(basic.getJSONArray("tripDates"));
+            if (priceFrom != null) {
+                card.put("priceFrom", priceFrom);
+            }
+        }
+        return new JSONObject(card);
+    }
+
+    /**
+     * Gets the lowest "price from" of the trip years, e.g. "$5,299", or null if none has a price.
+     */
+    private String getPriceFrom(JSONArray tripDates) throws JSONException {
+        String priceFrom = null;
+        double lowest = Double.MAX_VALUE;
+        for (int i = 0; i < tripDates.length(); i++) {
+            JSONObject tripDate = tripDates.getJSONObject(i);
+            if (tripDate.has("priceFrom")) {
+                String price = tripDate.getString("priceFrom");
+                double amount = NumberUtils.toDouble(price.replaceAll("[^0-9.]", ""), Double.MAX_VALUE);
+                if (amount < lowest) {
+                    lowest = amount;
+                    priceFrom = price;
+                }
+            }
+        }
+        return priceFrom;
+    }
+
     private String getTripIdByTripLegacyId(String oRegion, String tripLegacyId) {
+        String tripPath = "/adventures/trips/" + oRegion + "/";
+        TripIndex.Entry trip = tripIndex.findByPath(tripPath, tripLegacyId);
+        if (trip != null) {
+            recordTripXml(tripPath, tripLegacyId);
+            return trip.getTripId();
+        }
+
+        // not in the trip list, read it from its xml
         try {
-            String tripPath = "/adventures/trips/" + oRegion + "/";
             String tripUrl = TripConstants.DOC_BASE + tripPath + tripLegacyId + ".xml";
-            String tripXml = TripUtils.getFileContent(tripUrl);
-            JSONObject tripJson = TripUtils.getJsonFromXml(tripXml).getJSONObject("trip_id");
+            TripSource source = TripSource.load(tripUrl);
 
-            if (tripJson.has("trip_id_number")) {
-                return tripJson.getString("trip_id_number");
+            if (source.hasTripId()) {
+                return source.getTripId();
             }
         } catch (JSONException e) {
             e.printStackTrace();
@@ -370,56 +1271,52 @@ public class TripDataBuilder {
     }
 
     private String getTripIdFromTripList(String oRegion, String tripLegacyId) {
-        try {
-            String regionName = getRegionName(oRegion);
-            JSONArray regions = list.getJSONArray("tripList");
-            for (int i = 0; i < regions.length(); i++) {
-                JSONObject region = regions.getJSONObject(i);
-                if (region.getString("regionName").equals(regionName)) {
-                    JSONArray trips = region.getJSONArray("trips");
-                    for (int j = 0; j < trips.length(); j++) {
-                        JSONObject trip = trips.getJSONObject(j);
-                        if (trip.getString("tripLegacyId").equals(tripLegacyId)) {
-                            return trip.getString("tripId");
-                        }
-                    }
-                }
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
+        TripIndex.Entry trip = tripIndex.find(oRegion, tripLegacyId);
+        if (trip == null) {
+            return null;
         }
 
-        return null;
+        recordTripXml(trip.getPath(), tripLegacyId);
+        return trip.getTripId();
     }
 
-    private String getRegionName(String oRegion) {
-        switch (oRegion) {
-            case "antarctica":
-                return "polar";
-            case "latin":
-                return "latinAmerica";
-            case "namer":
-            case "weekend":
-                return "northAmerica";
-            default:
-                return oRegion;
-        }
+    private String getBasicOutput(String regionName, String tripId) {
+        return regionName + "/" + tripId + ".json";
     }
 
-    private void processGallery(JSONObject region) throws DataBuilderException {
-        try {
-            String regionName = region.getString("regionName");
-            JSONArray regionTrips = region.getJSONArray("trips");
+    private String getDetailOutput(String regionName, String tripId) {
+        return regionName + "/" + tripId + "/" + tripId + "-" + TripConstants.TRIP_DETAIL_FILENAME;
+    }
 
-            for (int i = 0; i < regionTrips.length(); i++) {
-                JSONObject trip = regionTrips.getJSONObject(i);
-                String tripPath = trip.getString("path");
-                String tripId = trip.getString("tripId");
+    private String getGalleryOutput(String regionName, String tripId) {
+        return regionName + "/" + tripId + "/" + tripId + "-" + TripConstants.TRIP_GALLERY_FILENAME;
+    }
 
-                createGalleryJson(tripPath, regionName, tripId);
-            }
-        } catch (JSONException e) {
-            throw new DataBuilderException(e.getMessage());
+    private String getCrossSellOutput(String regionName, String tripId) {
+        return regionName + "/" + tripId + "/" + tripId + "-" + TripConstants.TRIP_CROSS_SELL_FILENAME;
+    }
+
+    /**
+     * Writes a trip output through the write stage of the pipeline, or right away outside of it.
+     */
+    private void writeTripJson(String filename, JSONObject json) throws IOException, JSONException {
+        TripPipeline stage = pipeline;
+        if (stage != null) {
+            stage.write(filename, json);
+        } else {
+            TripUtils.writeJsonToFile(filename, json);
+        }
+    }
+
+    /**
+     * Records the trip xml as an input of the output being built. The xml was fetched during
+     * discovery, so this is a cache hit, or a known hash once the trip was released.
+     */
+    private void recordTripXml(String tripPath, String tripLegacyId) {
+        try {
+            TripUtils.recordDocument(TripConstants.DOC_BASE + tripPath + tripLegacyId + ".xml");
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -490,7 +1387,7 @@ public class TripDataBuilder {
         }
     }
 
-    private JSONArray processPrice(JSONObject tripCosts) throws DataBuilderException {
+    JSONArray processPrice(JSONObject tripCosts) throws DataBuilderException {
         try {
             JSONArray prices = new JSONArray();
             JSONArray costs = TripUtils.castToJSONArray(tripCosts.get("cost"));
@@ -583,97 +1480,83 @@ public class TripDataBuilder {
         }
     }
 
-    private JSONArray processDates(String region, String id) {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(true);
+    JSONArray processDates(String region, String id) {
+        Document doc = tripSources.get(id).getDocument();
+        NodeList list = doc.getElementsByTagName("trip_dates");
+        JSONArray tripDates = new JSONArray();
 
-        try {
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(new ByteArrayInputStream(tripXmls.get(id).getBytes()));
-            NodeList list = doc.getElementsByTagName("trip_dates");
-            JSONArray tripDates = new JSONArray();
-
-            for (int i = 0; i < list.getLength(); i++) {
-                Element date = (Element) list.item(i);
-                Map<String, Object> tripDate = new LinkedHashMap<>();
+        for (int i = 0; i < list.getLength(); i++) {
+            Element date = (Element) list.item(i);
+            Map<String, Object> tripDate = new LinkedHashMap<>();
 
-                if (date.hasAttribute("year")) {
-                    tripDate.put("year", date.getAttribute("year").toString());
-                    if (date.hasAttribute("price")) {
-                        tripDate.put("priceFrom", date.getAttribute("price").toString());
-                    }
+            if (date.hasAttribute("year")) {
+                tripDate.put("year", date.getAttribute("year").toString());
+                if (date.hasAttribute("price")) {
+                    tripDate.put("priceFrom", date.getAttribute("price").toString());
+                }
 
-                    // departures
-                    NodeList departures = date.getElementsByTagName("departure");
-                    JSONArray schedules = new JSONArray();
-
-                    for (int j = 0; j < departures.getLength(); j++) {
-                        Element departure = (Element) departures.item(j);
-                        Map<String, Object> schedule = new LinkedHashMap<>();
-                        schedule.put("startDate",
-                                departure.getElementsByTagName("start").item(0).getTextContent());
-                        schedule.put("endDate",
-                                departure.getElementsByTagName("end").item(0).getTextContent());
-                        Element dNote = (Element) departure.getElementsByTagName("note").item(0);
-                        schedule.put("status", "open");
-
-                        if (dNote != null) {
-                            String noteStr = dNote.getTextContent();
-                            if (noteStr.indexOf("Sold out") != -1) {
-                                schedule.put("status", "Sold out");
-                            }
-                            List<String> dNotes = new ArrayList<>();
-                            if (noteStr.indexOf('H') != -1) {
-                                dNotes.add("H");
-                            }
-                            if (noteStr.indexOf('R') != -1) {
-                                dNotes.add("R");
-                            }
-                            if (noteStr.indexOf('W') != -1) {
-                                dNotes.add("W");
-                            }
-                            if (noteStr.indexOf('*') != -1) {
-                                dNotes.add("*");
-                            }
-                            if (dNotes.size() > 0) {
-                                schedule.put("note", new JSONArray(dNotes));
-                            }
+                // departures
+                NodeList departures = date.getElementsByTagName("departure");
+                JSONArray schedules = new JSONArray();
+
+                for (int j = 0; j < departures.getLength(); j++) {
+                    Element departure = (Element) departures.item(j);
+                    Map<String, Object> schedule = new LinkedHashMap<>();
+                    schedule.put("startDate",
+                            departure.getElementsByTagName("start").item(0).getTextContent());
+                    schedule.put("endDate",
+                            departure.getElementsByTagName("end").item(0).getTextContent());
+                    Element dNote = (Element) departure.getElementsByTagName("note").item(0);
+                    schedule.put("status", TripConstants.DEPARTURE_STATUS_OPEN);
+
+                    if (dNote != null) {
+                        String noteStr = dNote.getTextContent();
+                        if (noteStr.indexOf(TripConstants.DEPARTURE_STATUS_SOLD_OUT) != -1) {
+                            schedule.put("status", TripConstants.DEPARTURE_STATUS_SOLD_OUT);
+                        }
+                        List<String> dNotes = new ArrayList<>();
+                        if (noteStr.indexOf('H') != -1) {
+                            dNotes.add("H");
+                        }
+                        if (noteStr.indexOf('R') != -1) {
+                            dNotes.add("R");
+                        }
+                        if (noteStr.indexOf('W') != -1) {
+                            dNotes.add("W");
+                        }
+                        if (noteStr.indexOf('*') != -1) {
+                            dNotes.add("*");
+                        }
+                        if (dNotes.size() > 0) {
+                            schedule.put("note", new JSONArray(dNotes));
                         }
-                        schedules.put(new JSONObject(schedule));
                     }
+                    schedules.put(new JSONObject(schedule));
+                }
 
-                    tripDate.put("departures", schedules);
-
-                    // note
-                    NodeList childrenList = date.getChildNodes();
-                    List<String> notes = new ArrayList<>();
-                    for (int k = 0; k < childrenList.getLength(); k++) {
-                        Node node = childrenList.item(k);
-                        if (node.getNodeName().equals("note")) {
-                            String note = TripUtils.nodeToString(node).replaceAll("\\r|\\n|\\t", "");
-                            if (note.length() > 13) {
-                                notes.add(note.substring(6, note.length() - 7));
-                            }
+                tripDate.put("departures", schedules);
+
+                // note
+                NodeList childrenList = date.getChildNodes();
+                List<String> notes = new ArrayList<>();
+                for (int k = 0; k < childrenList.getLength(); k++) {
+                    Node node = childrenList.item(k);
+                    if (node.getNodeName().equals("note")) {
+                        String note = MarkupWriter.toString(node, MarkupWriter.Whitespace.STRIP);
+                        if (note.length() > 13) {
+                            notes.add(note.substring(6, note.length() - 7));
                         }
                     }
-                    if (notes.size() > 0) {
-                        tripDate.put("note", notes);
-                    }
                 }
-
-                tripDates.put(new JSONObject(tripDate));
+                if (notes.size() > 0) {
+                    tripDate.put("note", notes);
+                }
             }
 
-            return tripDates;
-        } catch (SAXException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (ParserConfigurationException e) {
-            e.printStackTrace();
+            tripDates.put(new JSONObject(tripDate));
         }
 
-        return null;
+        return tripDates;
     }
 
     private String processShortSummary(String tripPath, String tripId) throws JSONException {
@@ -705,7 +1588,7 @@ public class TripDataBuilder {
         NodeList list = ele.getElementsByTagName("p");
         StringBuilder builder = new StringBuilder();
         for (int i = 0; i < list.getLength(); i++) {
-            builder.append(TripUtils.nodeToString(list.item(i)).replaceAll("\\r|\\n|\\t", ""));
+            MarkupWriter.append(builder, list.item(i), MarkupWriter.Whitespace.STRIP);
 
             if (i < list.getLength() - 1) {
                 builder.append('\n');
@@ -751,7 +1634,7 @@ public class TripDataBuilder {
         return json;
     }
 
-    private JSONObject processItinerary(String itineraryNote, Element ele) {
+    JSONObject processItinerary(String itineraryNote, Element ele) {
         NodeList list = ele.getElementsByTagName("details");
         JSONObject json = new JSONObject();
 
@@ -761,16 +1644,17 @@ public class TripDataBuilder {
                 for (int i = 0; i < list.getLength(); i++) {
                     Map<String, String> item = new LinkedHashMap<>();
                     Element itinerary = (Element) list.item(i);
-                    item.put("heading", itinerary.getElementsByTagName("heading").item(0).getTextContent().trim()
-                            .replaceAll("\\r|\\n", "").replaceAll("\\s+", " "));
+                    item.put("heading", MarkupWriter.normalize(
+                            itinerary.getElementsByTagName("heading").item(0).getTextContent().trim(),
+                            MarkupWriter.Whitespace.COLLAPSE));
                     item.put("subheading", itinerary.getElementsByTagName("subhead").item(0).getTextContent().trim());
 
-                    String description = "";
+                    StringBuilder description = new StringBuilder();
                     NodeList copy = itinerary.getElementsByTagName("p");
                     for (int j = 0; j < copy.getLength(); j++) {
-                        description += TripUtils.nodeToString(copy.item(j)).replaceAll("\\r|\\n", "").replaceAll("\\s+", " ");
+                        MarkupWriter.append(description, copy.item(j), MarkupWriter.Whitespace.COLLAPSE);
                     }
-                    item.put("description", description);
+                    item.put("description", description.toString());
                     items.add(new JSONObject(item));
                 }
                 json.put("dailyItinerary", items);
@@ -783,7 +1667,7 @@ public class TripDataBuilder {
         return json;
     }
 
-    private Map<String, JSONObject> processAdditionalInfo(Element info) {
+    Map<String, JSONObject> processAdditionalInfo(Element info) {
 
         Map<String, JSONObject> additionalInfo = new HashMap<>();
         NodeList list = info.getElementsByTagName("item");
@@ -791,16 +1675,16 @@ public class TripDataBuilder {
         for (int i = 0; i < list.getLength(); i++) {
             Element item = (Element) list.item(i);
             String title = item.getElementsByTagName("title").item(0).getTextContent();
-            String content = "";
+            StringBuilder content = new StringBuilder();
             NodeList copy = item.getElementsByTagName("p");
             for (int j = 0; j < copy.getLength(); j++) {
-                content += TripUtils.nodeToString(copy.item(j)).replaceAll("\\r|\\n", "").replaceAll("\\s+", " ");
+                MarkupWriter.append(content, copy.item(j), MarkupWriter.Whitespace.COLLAPSE);
             }
             JSONObject json = new JSONObject();
 
             try {
                 json.put("title", title);
-                json.put("content", content);
+                json.put("content", content.toString());
             } catch (JSONException e) {
                 e.printStackTrace();
             }
@@ -829,8 +1713,28 @@ public class TripDataBuilder {
 
     private void createBasicJson(
             String tripPath, String regionName, String tripId, String tripLegacyId, String extensionType) {
+        String output = getBasicOutput(regionName, tripId);
+
+        if (BuildManifest.isUpToDate(output, OutputPublisher.get(false).getPublishedFile(output),
+                tripPath, tripLegacyId, String.valueOf(extensionType))) {
+            return;
+        }
 
-        JSONObject tripOld = tripJsons.get(tripId);
+        BuildManifest.begin(output, tripPath, tripLegacyId, String.valueOf(extensionType));
+        long start = System.nanoTime();
+        try {
+            recordTripXml(tripPath, tripLegacyId);
+            buildBasicJson(tripPath, regionName, tripId, tripLegacyId, extensionType);
+        } finally {
+            RunMetrics.recordStage("basic", start);
+            BuildManifest.end();
+        }
+    }
+
+    private void buildBasicJson(
+            String tripPath, String regionName, String tripId, String tripLegacyId, String extensionType) {
+
+        JSONObject tripOld = tripSources.get(tripId).getJson();
         Map<String, Object> tripNew = new LinkedHashMap<>();
 
         try {
@@ -863,6 +1767,7 @@ public class TripDataBuilder {
                 tripNew.put("groupSize", getTypedContent(tripOld.get("groupSize")));
             } else {
                 System.out.println("No group size: " + regionName + ":" + tripId);
+                RunMetrics.recordError("noGroupSize");
             }
             tripNew.put("activityLevel", getTypedContent(tripOld.get("activity_level")));
             tripNew.put("activities", processActivities(tripOld.getJSONObject("activities")));
@@ -903,20 +1808,45 @@ public class TripDataBuilder {
             tripNew.put("tripDates", processDates(regionName, tripId));
             tripNew.put("tripLegacyId", tripLegacyId);
 
-            TripUtils.createDirectory(TripConstants.TRIP_JSON_PATH + regionName + "/" + tripId);
-            TripUtils.writeJsonToFile(
-                    regionName + "/" + tripId + ".json", new JSONObject(tripNew));
+            JSONObject basic = new JSONObject(tripNew);
+            writeTripJson(getBasicOutput(regionName, tripId), basic);
+            tripFacets.add(tripId, basic);
+            tripDepartures.add(tripId, basic);
+            tripCards.add(tripId, basic);
 
         } catch (JSONException e) {
+            RunMetrics.recordError("transform");
+            failIndexes(tripId);
             e.printStackTrace();
         } catch (DataBuilderException e) {
+            RunMetrics.recordError("transform");
+            failIndexes(tripId);
             e.printStackTrace();
         } catch (IOException e) {
+            RunMetrics.recordError("transform");
+            failIndexes(tripId);
             e.printStackTrace();
         }
     }
 
     private void createDetailJson(String tripPath, String regionName, String tripId) {
+        String output = getDetailOutput(regionName, tripId);
+
+        if (BuildManifest.isUpToDate(output, OutputPublisher.get(false).getPublishedFile(output), tripPath)) {
+            return;
+        }
+
+        BuildManifest.begin(output, tripPath);
+        long start = System.nanoTime();
+        try {
+            buildDetailJson(tripPath, regionName, tripId);
+        } finally {
+            RunMetrics.recordStage("detail", start);
+            BuildManifest.end();
+        }
+    }
+
+    private void buildDetailJson(String tripPath, String regionName, String tripId) {
         Document doc = TripUtils.getXmlDocument(tripPath, tripId, TripConstants.DOC_DETAIL_FILE_NAME);
 
         if (doc != null) {
@@ -975,56 +1905,48 @@ public class TripDataBuilder {
                 // add gear content
                 json.put("gearContents", processGear(tripPath, tripId));
 
-                TripUtils.createDirectory(TripConstants.TRIP_JSON_PATH + regionName + "/" + tripId);
-                TripUtils.writeJsonToFile(regionName + "/" + tripId + "/" + tripId + "-" +
-                        TripConstants.TRIP_DETAIL_FILENAME, new JSONObject(json));
+                writeTripJson(getDetailOutput(regionName, tripId), new JSONObject(json));
             } catch (Exception e) {
+                RunMetrics.recordError("transform");
                 e.printStackTrace();
             }
         }
     }
 
     private Map<String, String> getProgramManagerFromCSV(String region, String tripId) {
+        String csvFile = OutputPublisher.get(false).getPublishedFile(TripConstants.PROGRAM_MANAGERS_FILENAME).getPath();
+        BuildManifest.recordFile(csvFile);
+
+        ProgramManagerIndex.ProgramManager programManager = ProgramManagerIndex.get(csvFile, tripId);
+        if (programManager == null) {
+            return null;
+        }
+
         Map<String, String> manager = new LinkedHashMap<>();
+        manager.put("name", programManager.getName());
+        manager.put("description", programManager.getDescription());
+        manager.put("image", "/assets/img/adventures/trip/programManagers/" + region + "/" + programManager.getImage());
+        return manager;
+    }
 
-        String csvFile = TripConstants.TRIP_JSON_PATH + "programManagers.txt";
-        BufferedReader br = null;
-        String line = "";
-        String cvsSplitBy = "@";
+    private void createGalleryJson(String tripPath, String regionName, String tripId) {
+        String output = getGalleryOutput(regionName, tripId);
+
+        if (BuildManifest.isUpToDate(output, OutputPublisher.get(false).getPublishedFile(output), tripPath)) {
+            return;
+        }
 
+        BuildManifest.begin(output, tripPath);
+        long start = System.nanoTime();
         try {
-            File fileDir = new File(csvFile);
-            br = new BufferedReader(new InputStreamReader(new FileInputStream(fileDir), "UTF8"));
-
-            while ((line = br.readLine()) != null) {
-                // use comma as separator
-                String[] item = line.split(cvsSplitBy);
-
-                if (item[1].toLowerCase().equals(tripId)) {
-                    manager.put("name", item[2]);
-                    manager.put("description", item[3]);
-                    manager.put("image", "/assets/img/adventures/trip/programManagers/" + region + "/" + item[4]);
-                    return manager;
-                }
-            }
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+            buildGalleryJson(tripPath, regionName, tripId);
         } finally {
-            if (br != null) {
-                try {
-                    br.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+            RunMetrics.recordStage("gallery", start);
+            BuildManifest.end();
         }
-
-        return null;
     }
 
-    private void createGalleryJson(String tripPath, String regionName, String tripId) {
+    private void buildGalleryJson(String tripPath, String regionName, String tripId) {
         String url = TripConstants.DOC_BASE + tripPath + tripId + TripConstants.DOC_SLIDE_SHOW_FILE_NAME;
         String xml;
         try {
@@ -1058,13 +1980,12 @@ public class TripDataBuilder {
                 }
 
                 json.put("images", images);
-                TripUtils.createDirectory(TripConstants.TRIP_JSON_PATH + regionName + "/" + tripId);
-                TripUtils.writeJsonToFile(regionName + "/" + tripId + "/" + tripId + "-" +
-                        TripConstants.TRIP_GALLERY_FILENAME, json);
+                writeTripJson(getGalleryOutput(regionName, tripId), json);
             }
         } catch (IOException e) {
             System.out.println("Not found: " + url);
         } catch (JSONException e) {
+            RunMetrics.recordError("transform");
             e.printStackTrace();
         }
     }
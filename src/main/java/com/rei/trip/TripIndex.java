@@ -0,0 +1,105 @@
+package com.rei.trip;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Identity index of the trips found during trip list discovery.
+ * Resolves the "region/tripLegacyId" codes of the cross-sell list to trip ids without
+ * fetching the trip xml again. The legacy region codes (latin, namer, ...) are indexed along
+ * with the trip list region name, so a lookup is a single get.
+ *
+ * @author sahan
+ */
+public class TripIndex {
+    private static final Map<String, String> REGION_ALIASES = new HashMap<>();
+
+    static {
+        REGION_ALIASES.put("antarctica", "polar");
+        REGION_ALIASES.put("latin", "latinAmerica");
+        REGION_ALIASES.put("namer", "northAmerica");
+        REGION_ALIASES.put("weekend", "northAmerica");
+    }
+
+    /**
+     * A trip of the index.
+     */
+    public static class Entry {
+        private final String tripId;
+        private final String tripLegacyId;
+        private final String path;
+        private final String regionName;
+
+        private Entry(String tripId, String tripLegacyId, String path, String regionName) {
+            this.tripId = tripId;
+            this.tripLegacyId = tripLegacyId;
+            this.path = path;
+            this.regionName = regionName;
+        }
+
+        public String getTripId() {
+            return tripId;
+        }
+
+        public String getTripLegacyId() {
+            return tripLegacyId;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getRegionName() {
+            return regionName;
+        }
+    }
+
+    private final Map<String, Entry> byTripId = new ConcurrentHashMap<>();
+    private final Map<String, Entry> byRegion = new ConcurrentHashMap<>();
+    private final Map<String, Entry> byPath = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the trip list region name of a legacy region code, e.g. "latin" -> "latinAmerica".
+     */
+    public static String getRegionName(String regionCode) {
+        String regionName = REGION_ALIASES.get(regionCode);
+        return regionName != null ? regionName : regionCode;
+    }
+
+    /**
+     * Adds a trip. The first trip added for a key wins, like the first match of a scan of the trip list.
+     *
+     * @param regionName region name of the trip list, e.g. "latinAmerica"
+     * @param path       path of the trip xml, e.g. "/adventures/trips/latin/"
+     */
+    public void add(String regionName, String path, String tripId, String tripLegacyId) {
+        Entry entry = new Entry(tripId, tripLegacyId, path, regionName);
+        byTripId.putIfAbsent(tripId, entry);
+        byPath.putIfAbsent(path + tripLegacyId, entry);
+        byRegion.putIfAbsent(regionName + "/" + tripLegacyId, entry);
+        for (Map.Entry<String, String> alias : REGION_ALIASES.entrySet()) {
+            if (alias.getValue().equals(regionName)) {
+                byRegion.putIfAbsent(alias.getKey() + "/" + tripLegacyId, entry);
+            }
+        }
+    }
+
+    /**
+     * Finds a trip by legacy region code (or region name) and legacy id.
+     */
+    public Entry find(String regionCode, String tripLegacyId) {
+        return byRegion.get(regionCode + "/" + tripLegacyId);
+    }
+
+    /**
+     * Finds the trip whose xml is at the path, e.g. ("/adventures/trips/africa/", "kil").
+     */
+    public Entry findByPath(String path, String tripLegacyId) {
+        return byPath.get(path + tripLegacyId);
+    }
+
+    public Entry get(String tripId) {
+        return byTripId.get(tripId);
+    }
+}
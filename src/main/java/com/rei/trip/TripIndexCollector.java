@@ -0,0 +1,156 @@
+package com.rei.trip;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Collects the value of each trip in a catalog-wide index, such as its facets in facetIndex.json.
+ * The value of a trip comes, in order, from the basic json built in this run or the shard manifest
+ * being merged, from the published index, or from the basic json of the trip as it is on disk.
+ * A trip whose basic json failed to build in this run is left out of the index rather than kept
+ * with the value of an older build.
+ *
+ * @author sahan
+ */
+public class TripIndexCollector<T> {
+
+    /**
+     * Gets the value of a trip out of its basic json, or out of its entry in a shard manifest.
+     */
+    public interface Extractor<T> {
+        T extract(JSONObject json) throws JSONException;
+    }
+
+    /**
+     * Reads the basic json of a trip, or returns null if there is none.
+     */
+    public interface BasicJsonReader {
+        JSONObject read(String regionName, String tripId) throws IOException, JSONException;
+    }
+
+    private final String name;
+    private final Extractor<T> basicExtractor;
+    private final Extractor<T> shardExtractor;
+    private final Supplier<Map<String, T>> publishedReader;
+    private final BasicJsonReader basicReader;
+    private final Map<String, T> built = new ConcurrentHashMap<>();
+    private final Set<String> failed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param name            key of the value in the entries of a shard manifest
+     * @param basicExtractor  gets the value of a trip out of its basic json
+     * @param shardExtractor  gets the value of a trip out of its entry in a shard manifest
+     * @param publishedReader reads the published index back by trip id, in its order, empty if there is none
+     * @param basicReader     reads the basic json of a trip
+     */
+    public TripIndexCollector(String name, Extractor<T> basicExtractor, Extractor<T> shardExtractor,
+                              Supplier<Map<String, T>> publishedReader, BasicJsonReader basicReader) {
+        this.name = name;
+        this.basicExtractor = basicExtractor;
+        this.shardExtractor = shardExtractor;
+        this.publishedReader = publishedReader;
+        this.basicReader = basicReader;
+    }
+
+    /**
+     * Takes the value of a trip from the basic json built for it in this run.
+     */
+    public void add(String tripId, JSONObject basic) throws JSONException {
+        built.put(tripId, basicExtractor.extract(basic));
+        failed.remove(tripId);
+    }
+
+    /**
+     * Marks a trip whose basic json failed to build in this run, so it is left out of the index.
+     */
+    public void fail(String tripId) {
+        failed.add(tripId);
+        built.remove(tripId);
+    }
+
+    /**
+     * Takes the value of a trip from its entry in a shard manifest, if it has one.
+     */
+    public void addShardTrip(JSONObject shardTrip) throws JSONException {
+        if (shardTrip.has(name)) {
+            built.put(shardTrip.getString("tripId"), shardExtractor.extract(shardTrip));
+        }
+    }
+
+    /**
+     * Writes the value of a trip to its entry in a shard manifest, if it has one.
+     */
+    public void putShardTrip(JSONObject shardTrip, String regionName) throws IOException, JSONException {
+        T value = get(regionName, shardTrip.getString("tripId"));
+        if (value != null) {
+            shardTrip.put(name, value);
+        }
+    }
+
+    /**
+     * Gets the value of a trip built in this run, else reads it from its basic json, or null if it
+     * has none or failed to build.
+     */
+    public T get(String regionName, String tripId) throws IOException, JSONException {
+        if (failed.contains(tripId)) {
+            return null;
+        }
+        T value = built.get(tripId);
+        if (value == null) {
+            JSONObject basic = basicReader.read(regionName, tripId);
+            if (basic != null) {
+                value = basicExtractor.extract(basic);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Collects the values of the trips of an index. Trips that were up to date keep the value of
+     * the published index, or, missing there, of their basic json.
+     *
+     * @param tripRegions region names by trip id of the whole trip list, or null to index the
+     *                    trips of the published index and those built in this run
+     * @return the values by trip id, in trip list order, or else in the order of the published
+     *         index followed by the trips built in this run
+     */
+    public Map<String, T> collect(Map<String, String> tripRegions) throws IOException, JSONException {
+        Map<String, T> published = publishedReader.get();
+        Set<String> tripIds = new LinkedHashSet<>();
+        if (tripRegions != null) {
+            tripIds.addAll(tripRegions.keySet());
+        } else {
+            tripIds.addAll(published.keySet());
+            tripIds.addAll(built.keySet());
+        }
+
+        Map<String, T> values = new LinkedHashMap<>();
+        for (String tripId : tripIds) {
+            if (failed.contains(tripId)) {
+                System.out.println("No " + name + ": " + tripId + ", its basic json failed to build");
+                continue;
+            }
+            T value = built.get(tripId);
+            if (value == null) {
+                value = published.get(tripId);
+            }
+            if (value == null && tripRegions != null) {
+                value = get(tripRegions.get(tripId), tripId);
+            }
+            if (value == null) {
+                System.out.println("No " + name + ": " + tripId);
+                continue;
+            }
+            values.put(tripId, value);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,94 @@
+package com.rei.trip;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Selects the trips a run builds: all of them, those of some regions or trip ids, and one shard of K.
+ * Shards are assigned by a stable hash (String.hashCode) of the trip id or of the region name, so
+ * every process computes the same partition of the trip list.
+ *
+ * @author sahan
+ */
+public class TripSelector {
+    public static final TripSelector ALL = new TripSelector(Collections.<String>emptySet(),
+            Collections.<String>emptySet(), 0, 1, ShardBy.TRIP);
+
+    /**
+     * The key trips are sharded by.
+     */
+    public enum ShardBy {
+        REGION, TRIP
+    }
+
+    private final Set<String> regions = new HashSet<>();
+    private final Set<String> tripIds;
+    private final int shard;
+    private final int shards;
+    private final ShardBy shardBy;
+
+    /**
+     * @param regions region names (e.g. "latinAmerica" or its legacy code "latin"), all regions if empty
+     * @param tripIds trip ids, all trips if empty
+     * @param shard   index of the shard built, 0 to shards - 1
+     */
+    public TripSelector(Collection<String> regions, Collection<String> tripIds, int shard, int shards,
+                        ShardBy shardBy) {
+        if (shards < 1 || shard < 0 || shard >= shards) {
+            throw new IllegalArgumentException("Invalid shard " + shard + "/" + shards);
+        }
+        for (String region : regions) {
+            this.regions.add(TripIndex.getRegionName(region));
+        }
+        this.tripIds = new HashSet<>(tripIds);
+        this.shard = shard;
+        this.shards = shards;
+        this.shardBy = shardBy;
+    }
+
+    /**
+     * Returns true if the run builds only some of the trips.
+     */
+    public boolean isPartial() {
+        return isSharded() || !regions.isEmpty() || !tripIds.isEmpty();
+    }
+
+    public boolean isSharded() {
+        return shards > 1;
+    }
+
+    /**
+     * Returns false if no trip of the region is selected, so its trips need not be fetched at all.
+     */
+    public boolean selectsRegion(String regionName) {
+        if (!regions.isEmpty() && !regions.contains(regionName)) {
+            return false;
+        }
+        return shardBy != ShardBy.REGION || getShard(regionName) == shard;
+    }
+
+    public boolean selects(String regionName, String tripId) {
+        if (!selectsRegion(regionName) || (!tripIds.isEmpty() && !tripIds.contains(tripId))) {
+            return false;
+        }
+        return shardBy != ShardBy.TRIP || getShard(tripId) == shard;
+    }
+
+    private int getShard(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % shards;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public ShardBy getShardBy() {
+        return shardBy;
+    }
+}
@@ -0,0 +1,91 @@
+package com.rei.trip;
+
+import com.rei.trip.util.TripUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A trip xml from Documentum, parsed once.
+ * The basic info, dates and summary stages all read from this instead of re-parsing the xml:
+ * the DOM for markup content and its json view (the "trip_id" object) for plain fields.
+ * A long-running process can keep the parsed trips between runs; a trip xml whose content has
+ * not changed is then not parsed again.
+ *
+ * @author sahan
+ */
+public class TripSource {
+    private static final Map<String, TripSource> parsed = new ConcurrentHashMap<>();
+    private static volatile boolean keepParsed = false;
+
+    private final Document document;
+    private final JSONObject json;
+    private String hash;
+
+    private TripSource(Document document, JSONObject json) {
+        this.document = document;
+        this.json = json;
+    }
+
+    /**
+     * Fetches and parses the trip xml at the url.
+     */
+    public static TripSource load(String url) throws IOException, JSONException {
+        byte[] content = TripUtils.getDocumentBytes(url);
+        if (!keepParsed) {
+            return parse(url, content);
+        }
+
+        String hash = TripUtils.hash(content);
+        TripSource source = parsed.get(url);
+        if (source == null || !source.hash.equals(hash)) {
+            source = parse(url, content);
+            source.hash = hash;
+            parsed.put(url, source);
+        }
+        return source;
+    }
+
+    /**
+     * Keeps the parsed trip xmls for the next runs of this process, or drops them.
+     */
+    public static void keepParsed(boolean keep) {
+        keepParsed = keep;
+        if (!keep) {
+            parsed.clear();
+        }
+    }
+
+    /**
+     * Parses the content of a trip xml.
+     */
+    public static TripSource parse(String url, byte[] content) throws IOException, JSONException {
+        try {
+            Document document = TripUtils.parseXml(content);
+            return new TripSource(document, TripUtils.getJsonFromXml(document).getJSONObject("trip_id"));
+        } catch (SAXException e) {
+            throw new IOException("Unable to parse " + url + ": " + e.getMessage(), e);
+        }
+    }
+
+    public String getTripId() throws JSONException {
+        return json.getString("trip_id_number");
+    }
+
+    public boolean hasTripId() {
+        return json.has("trip_id_number");
+    }
+
+    public Document getDocument() {
+        return document;
+    }
+
+    public JSONObject getJson() {
+        return json;
+    }
+}
@@ -0,0 +1,183 @@
+package com.rei.trip;
+
+import com.rei.trip.util.RunMetrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watch mode: keeps the process up and runs a build cycle every interval. A cycle asks Documentum
+ * again for every document, with conditional requests through the http cache, and rebuilds only
+ * the outputs whose sources changed, as an incremental run does. The JIT, the http cache, the
+ * kept-alive connections and the parsed trip xmls stay warm between cycles.
+ *
+ * An optional hook on localhost starts a cycle right away, e.g. on a CMS publish event:
+ *
+ *     POST /rebuild              rebuilds whatever changed
+ *     POST /rebuild?trip=kil     rebuilds the trip kil (trip ids comma separated) in place
+ *
+ * @author sahan
+ */
+public class TripWatcher {
+    /**
+     * Request queued for a full cycle.
+     */
+    private static final String ALL = "";
+
+    /**
+     * A build cycle, returning the index of the trips built, or null if the cycle failed.
+     */
+    public interface Cycle {
+        TripIndex run(TripSelector selector, boolean first);
+    }
+
+    private final long intervalMillis;
+    private final int hookPort;
+    private final BlockingQueue<String> requests = new LinkedBlockingQueue<>();
+    private TripIndex tripIndex;
+
+    /**
+     * @param hookPort port of the rebuild hook, none if 0
+     */
+    public TripWatcher(long intervalMillis, int hookPort) {
+        this.intervalMillis = intervalMillis;
+        this.hookPort = hookPort;
+    }
+
+    /**
+     * Runs cycles until the thread is interrupted.
+     */
+    public void run(Cycle cycle) throws IOException {
+        HttpServer hook = hookPort > 0 ? startHook() : null;
+        try {
+            long next = 0;
+            boolean first = true;
+            while (!Thread.currentThread().isInterrupted()) {
+                long wait = next - System.currentTimeMillis();
+                String request = wait > 0 ? requests.poll(wait, TimeUnit.MILLISECONDS) : ALL;
+                List<String> pending = new ArrayList<>();
+                pending.add(request != null ? request : ALL);
+                requests.drainTo(pending);
+
+                Set<String> tripIds = new TreeSet<>();
+                boolean all = false;
+                for (String tripId : pending) {
+                    all |= tripId.equals(ALL);
+                    tripIds.add(tripId);
+                }
+
+                if (all) {
+                    System.out.println("Watch: building all trips");
+                    TripIndex index = runCycle(cycle, TripSelector.ALL, first);
+                    if (index != null) {
+                        tripIndex = index;
+                    }
+                    next = System.currentTimeMillis() + intervalMillis;
+                } else {
+                    System.out.println("Watch: building trips " + tripIds);
+                    runCycle(cycle, getSelector(tripIds), first);
+                }
+                first = false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (hook != null) {
+                hook.stop(0);
+            }
+        }
+    }
+
+    /**
+     * Runs a cycle. A cycle that throws is logged and counted as a failed run; the watch goes on
+     * with the next cycle.
+     */
+    private static TripIndex runCycle(Cycle cycle, TripSelector selector, boolean first) {
+        try {
+            return cycle.run(selector, first);
+        } catch (RuntimeException e) {
+            System.out.println("Watch: cycle failed: " + e);
+            e.printStackTrace();
+            RunMetrics.recordFailedRun();
+            return null;
+        }
+    }
+
+    /**
+     * Gets the selector of some trips. Only the regions of the trips are read when they are all
+     * known from the last full cycle.
+     */
+    private TripSelector getSelector(Set<String> tripIds) {
+        Set<String> regions = new TreeSet<>();
+        for (String tripId : tripIds) {
+            TripIndex.Entry entry = tripIndex != null ? tripIndex.get(tripId) : null;
+            if (entry == null) {
+                regions.clear();
+                break;
+            }
+            regions.add(entry.getRegionName());
+        }
+        return new TripSelector(regions, tripIds, 0, 1, TripSelector.ShardBy.TRIP);
+    }
+
+    private HttpServer startHook() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), hookPort), 0);
+        server.createContext("/rebuild", this::handleRebuild);
+        server.start();
+        System.out.println("Watch: rebuild hook on " + server.getAddress());
+        return server;
+    }
+
+    private void handleRebuild(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, HttpURLConnection.HTTP_BAD_METHOD, "POST only");
+                return;
+            }
+
+            List<String> tripIds = Collections.singletonList(ALL);
+            String query = exchange.getRequestURI().getQuery();
+            if (query != null && query.startsWith("trip=")) {
+                tripIds = new ArrayList<>();
+                for (String tripId : query.substring("trip=".length()).split(",")) {
+                    if (!tripId.matches("[A-Za-z0-9_-]+")) {
+                        respond(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "Invalid trip id: " + tripId);
+                        return;
+                    }
+                    tripIds.add(tripId);
+                }
+            } else if (query != null) {
+                respond(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "Unknown query: " + query);
+                return;
+            }
+
+            requests.addAll(tripIds);
+            respond(exchange, HttpURLConnection.HTTP_ACCEPTED, "Queued");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+}
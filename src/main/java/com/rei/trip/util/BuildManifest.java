@@ -0,0 +1,314 @@
+package com.rei.trip.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records which source documents each output file was derived from.
+ * Every output keeps the content hashes of its inputs; on the next run an output
+ * whose inputs all hash the same (and whose file is still there) is not rebuilt.
+ *
+ * Usage:
+ *     if (!BuildManifest.isUpToDate(output, file, params)) {
+ *         BuildManifest.begin(output, params);
+ *         try { ... build and write ... } finally { BuildManifest.end(); }
+ *     }
+ *
+ * @author sahan
+ */
+public class BuildManifest {
+    private static final int VERSION = 1;
+    private static final String PARAMS = "params";
+    private static final String MISSING = "missing";
+    private static final String FILE_PREFIX = "file:";
+    private static final String OUTPUT_PREFIX = "output:";
+
+    private static File manifestFile = new File(TripConstants.BUILD_MANIFEST_PATH);
+    private static boolean fullRebuild = false;
+    private static Map<String, Map<String, String>> previous = new HashMap<>();
+    private static final Map<String, Map<String, String>> current = new ConcurrentHashMap<>();
+    private static final Map<String, String> hashes = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Deque<Recording>> recordings = ThreadLocal.withInitial(ArrayDeque::new);
+
+    /**
+     * Inputs collected for one output while it is being built.
+     */
+    private static class Recording {
+        private final String output;
+        private final Map<String, String> inputs = new TreeMap<>();
+        private boolean written;
+        private CompletableFuture<?> write;
+
+        private Recording(String output) {
+            this.output = output;
+        }
+    }
+
+    /**
+     * Defined to prevent instances of this class from being created.
+     */
+    private BuildManifest() {
+    }
+
+    /**
+     * Loads the manifest of the previous run. With a full rebuild no output is up to date, but the
+     * previous outputs are still known to keepAll.
+     */
+    @SuppressWarnings("unchecked")
+    public static synchronized void load(String path, boolean full) {
+        manifestFile = new File(path);
+        fullRebuild = full;
+        previous = new HashMap<>();
+        current.clear();
+        hashes.clear();
+
+        if (manifestFile.exists()) {
+            try {
+                Map<String, Object> json = new ObjectMapper().readValue(manifestFile, Map.class);
+                if (Integer.valueOf(VERSION).equals(json.get("version"))) {
+                    previous = (Map<String, Map<String, String>>) json.get("outputs");
+                } else {
+                    System.out.println("Build manifest version changed, rebuilding everything");
+                }
+            } catch (IOException e) {
+                System.out.println("Unable to read build manifest, rebuilding everything: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes the manifest of this run.
+     */
+    public static synchronized void save() throws IOException {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("version", VERSION);
+        json.put("outputs", new TreeMap<>(current));
+
+        File parent = manifestFile.getAbsoluteFile().getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        File tmp = new File(manifestFile.getPath() + ".tmp");
+        new ObjectMapper().writeValue(tmp, json);
+        Files.move(tmp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Gets the outputs that belong to this run, whether rebuilt or up to date.
+     */
+    public static Set<String> getOutputs() {
+        return current.keySet();
+    }
+
+    /**
+     * Gets the inputs recorded for an output in this run, or null if it has none (yet).
+     */
+    public static Map<String, String> getInputs(String output) {
+        return current.get(output);
+    }
+
+    /**
+     * Records an output built by another run, e.g. a shard, with the inputs that run recorded for
+     * it. Local files that run read under its own output tree are taken as the same files under
+     * this one. An output imported without inputs is kept by keepAll but rebuilt by the next run.
+     */
+    public static void imported(String output, Map<String, String> inputs, File fromRoot, File toRoot) {
+        String fromPrefix = FILE_PREFIX + fromRoot.getAbsolutePath() + File.separator;
+        String toPrefix = FILE_PREFIX + toRoot.getAbsolutePath() + File.separator;
+        Map<String, String> imported = new TreeMap<>();
+        if (inputs != null) {
+            for (Map.Entry<String, String> input : inputs.entrySet()) {
+                String key = input.getKey();
+                if (key.startsWith(fromPrefix)) {
+                    key = toPrefix + key.substring(fromPrefix.length());
+                }
+                imported.put(key, input.getValue());
+            }
+        }
+        current.put(output, imported);
+    }
+
+    /**
+     * Returns true if the output was built before from inputs that have not changed since.
+     * An output that is up to date is carried over into this run's manifest.
+     */
+    public static boolean isUpToDate(String output, File file, String... params) {
+        Map<String, String> inputs = previous.get(output);
+
+        if (fullRebuild || inputs == null || !file.exists() || !joinParams(params).equals(inputs.get(PARAMS))) {
+            return false;
+        }
+
+        for (Map.Entry<String, String> input : inputs.entrySet()) {
+            String key = input.getKey();
+            if (key.equals(PARAMS) || key.startsWith(OUTPUT_PREFIX)) {
+                continue;
+            }
+            if (!input.getValue().equals(getCurrentHash(key))) {
+                return false;
+            }
+        }
+
+        keep(output);
+        return true;
+    }
+
+    /**
+     * Carries every output of the previous run that this run did not build over into this run's
+     * manifest, for runs that build only some of the trips.
+     */
+    public static void keepAll() {
+        for (Map.Entry<String, Map<String, String>> output : previous.entrySet()) {
+            current.putIfAbsent(output.getKey(), output.getValue());
+        }
+    }
+
+    private static void keep(String output) {
+        Map<String, String> inputs = previous.get(output);
+        if (inputs == null) {
+            return;
+        }
+        current.put(output, inputs);
+        record(OUTPUT_PREFIX + output, "");
+        for (Map.Entry<String, String> input : inputs.entrySet()) {
+            if (input.getKey().startsWith(OUTPUT_PREFIX)) {
+                keep(input.getKey().substring(OUTPUT_PREFIX.length()));
+            } else if (!input.getKey().equals(PARAMS)) {
+                record(input.getKey(), input.getValue());
+            }
+        }
+    }
+
+    /**
+     * Starts recording the inputs of an output on this thread.
+     */
+    public static void begin(String output, String... params) {
+        Recording recording = new Recording(output);
+        recording.inputs.put(PARAMS, joinParams(params));
+        recordings.get().push(recording);
+    }
+
+    /**
+     * Stops recording the current output. Its inputs are kept only if the output was written;
+     * for an output written by another thread, once that write succeeds.
+     */
+    public static void end() {
+        Recording recording = recordings.get().pop();
+        if (recording.written) {
+            current.put(recording.output, recording.inputs);
+            record(OUTPUT_PREFIX + recording.output, "");
+        } else if (recording.write != null) {
+            record(OUTPUT_PREFIX + recording.output, "");
+            recording.write.whenComplete((result, e) -> {
+                if (e == null) {
+                    current.put(recording.output, recording.inputs);
+                }
+            });
+        }
+    }
+
+    /**
+     * Marks an output as written, called by TripUtils.writeJsonToFile.
+     */
+    public static void written(String output) {
+        for (Recording recording : recordings.get()) {
+            if (recording.output.equals(output)) {
+                recording.written = true;
+            }
+        }
+    }
+
+    /**
+     * Marks an output as being written by another thread, e.g. the write stage of the pipeline.
+     * A write that fails leaves no trace of the output in the manifest, whenever it completes.
+     */
+    public static void writing(String output, CompletableFuture<?> write) {
+        for (Recording recording : recordings.get()) {
+            if (recording.output.equals(output)) {
+                recording.write = write;
+            }
+        }
+    }
+
+    /**
+     * Records a Documentum document read by the outputs being built on this thread.
+     */
+    public static void recordDocument(String url, byte[] content) {
+        if (!recordings.get().isEmpty()) {
+            record(url, hashes.computeIfAbsent(url, key -> TripUtils.hash(content)));
+        }
+    }
+
+    /**
+     * Records a Documentum document by the hash of its content.
+     */
+    public static void recordDocumentHash(String url, String hash) {
+        if (!recordings.get().isEmpty()) {
+            record(url, hashes.computeIfAbsent(url, key -> hash));
+        }
+    }
+
+    /**
+     * Records a Documentum document that does not exist.
+     */
+    public static void recordMissingDocument(String url) {
+        if (!recordings.get().isEmpty()) {
+            record(url, MISSING);
+        }
+    }
+
+    /**
+     * Records a local file read by the outputs being built on this thread.
+     */
+    public static void recordFile(String path) {
+        if (!recordings.get().isEmpty()) {
+            record(FILE_PREFIX + path, getCurrentHash(FILE_PREFIX + path));
+        }
+    }
+
+    private static void record(String key, String hash) {
+        for (Recording recording : recordings.get()) {
+            recording.inputs.put(key, hash);
+        }
+    }
+
+    private static String getCurrentHash(String key) {
+        String hash = hashes.get(key);
+        if (hash != null) {
+            return hash;
+        }
+
+        try {
+            if (key.startsWith(FILE_PREFIX)) {
+                File file = new File(key.substring(FILE_PREFIX.length()));
+                hash = file.exists() ? TripUtils.hash(Files.readAllBytes(file.toPath())) : MISSING;
+            } else {
+                hash = TripUtils.hash(TripUtils.getDocumentBytes(key));
+            }
+        } catch (FileNotFoundException e) {
+            hash = MISSING;
+        } catch (IOException e) {
+            // unknown state, rebuild the output
+            return "";
+        }
+        hashes.put(key, hash);
+
+        return hash;
+    }
+
+    private static String joinParams(String... params) {
+        StringBuilder builder = new StringBuilder();
+        for (String param : params) {
+            builder.append(param).append('|');
+        }
+        return builder.toString();
+    }
+}
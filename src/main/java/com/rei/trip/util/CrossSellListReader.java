@@ -0,0 +1,99 @@
+package com.rei.trip.util;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming reader of the cross-sell list xml.
+ * Every cross-sell entry is handed to the handler once its end tag is reached.
+ *
+ *     <cross-sell-list>
+ *         <cross-sell>
+ *             <type>related</type>
+ *             <cross-sell-trip>africa/kil</cross-sell-trip>
+ *             <main-trips>
+ *                 <main-trip>africa/tnz</main-trip>
+ *             </main-trips>
+ *         </cross-sell>
+ *     </cross-sell-list>
+ *
+ * @author sahan
+ */
+public class CrossSellListReader {
+
+    /**
+     * One cross-sell entry: the type, the "region/legacyId" of the cross-sell trip and of its main trips.
+     */
+    public static class Entry {
+        private String type;
+        private String crossSellTrip;
+        private final List<String> mainTrips = new ArrayList<>();
+
+        public String getType() {
+            return type;
+        }
+
+        public String getCrossSellTrip() {
+            return crossSellTrip;
+        }
+
+        public List<String> getMainTrips() {
+            return mainTrips;
+        }
+    }
+
+    /**
+     * Receives the cross-sell entries in document order.
+     */
+    public interface Handler {
+        void crossSell(Entry entry);
+    }
+
+    /**
+     * Defined to prevent instances of this class from being created.
+     */
+    private CrossSellListReader() {
+    }
+
+    public static void read(InputStream input, Handler handler) throws IOException {
+        try {
+            XMLStreamReader reader = TripUtils.createXmlStreamReader(input);
+            try {
+                Entry entry = null;
+
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+                        if (name.equals("cross-sell")) {
+                            entry = new Entry();
+                            entry.type = reader.getAttributeValue(null, "type");
+                        } else if (entry != null && name.equals("type")) {
+                            entry.type = reader.getElementText().trim();
+                        } else if (entry != null && name.equals("cross-sell-trip")) {
+                            entry.crossSellTrip = reader.getElementText().trim();
+                        } else if (entry != null && name.equals("main-trip")) {
+                            entry.mainTrips.add(reader.getElementText().trim());
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT && entry != null
+                            && reader.getLocalName().equals("cross-sell")) {
+                        if (entry.type == null || entry.crossSellTrip == null) {
+                            throw new IOException("Cross-sell entry without type or cross-sell-trip");
+                        }
+                        handler.crossSell(entry);
+                        entry = null;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to read cross-sell list: " + e.getMessage(), e);
+        }
+    }
+}
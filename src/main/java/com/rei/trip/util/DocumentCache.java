@@ -0,0 +1,127 @@
+package com.rei.trip.util;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run-scoped cache of Documentum documents keyed by url.
+ * Concurrent requests for the same url share one in-flight fetch, and documents
+ * that do not exist are remembered so they are asked for only once per run.
+ * A document no longer needed can be released: its content is dropped and only its hash is kept.
+ *
+ * @author sahan
+ */
+public class DocumentCache {
+    private static final Map<String, CompletableFuture<byte[]>> documents = new ConcurrentHashMap<>();
+    private static final Map<String, String> released = new ConcurrentHashMap<>();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Loads a document that is not in the cache yet.
+     */
+    public interface Loader {
+        byte[] load(String url) throws IOException;
+    }
+
+    /**
+     * Defined to prevent instances of this class from being created.
+     */
+    private DocumentCache() {
+    }
+
+    /**
+     * Returns the document for the url, loading it only if no other caller has done so in this run.
+     */
+    public static byte[] get(String url, Loader loader) throws IOException {
+        CompletableFuture<byte[]> created = new CompletableFuture<>();
+        CompletableFuture<byte[]> existing = documents.putIfAbsent(url, created);
+
+        if (existing == null) {
+            misses.incrementAndGet();
+            released.remove(url);
+            try {
+                byte[] content = loader.load(url);
+                created.complete(content);
+                return content;
+            } catch (IOException | RuntimeException e) {
+                if (!(e instanceof FileNotFoundException)) {
+                    // let a later caller try again
+                    documents.remove(url, created);
+                }
+                created.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        hits.incrementAndGet();
+        try {
+            return existing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + url, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof FileNotFoundException) {
+                throw new FileNotFoundException(cause.getMessage());
+            } else if (cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Drops the content of a loaded document and keeps its hash. Asking for the document again fetches it again.
+     */
+    public static void release(String url) {
+        CompletableFuture<byte[]> document = documents.get(url);
+        if (document != null && document.isDone() && !document.isCompletedExceptionally()
+                && documents.remove(url, document)) {
+            released.put(url, TripUtils.hash(document.join()));
+        }
+    }
+
+    /**
+     * Remembers the hash of a document read by another run, e.g. a shard, as if it was released.
+     */
+    public static void putHash(String url, String hash) {
+        if (!documents.containsKey(url)) {
+            released.put(url, hash);
+        }
+    }
+
+    /**
+     * Gets the hash of a released document, or null if the document was not released.
+     */
+    public static String getReleasedHash(String url) {
+        return released.get(url);
+    }
+
+    /**
+     * Clears the cache and its counters for a new run.
+     */
+    public static void clear() {
+        documents.clear();
+        released.clear();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    public static String getStats() {
+        return "Document cache: " + getHits() + " hits, " + getMisses() + " misses";
+    }
+}
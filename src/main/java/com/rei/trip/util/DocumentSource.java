@@ -0,0 +1,25 @@
+package com.rei.trip.util;
+
+import java.io.IOException;
+
+/**
+ * Where Documentum documents are read from: the live CMS over HTTP, a local mirror of it,
+ * or the CMS while recording into a mirror.
+ *
+ * @author sahan
+ */
+public interface DocumentSource {
+
+    /**
+     * Reads the document at the url, e.g. https://corp.rei.com/adventures/data/trip-list.xml.
+     *
+     * @throws java.io.FileNotFoundException if the document does not exist
+     */
+    byte[] read(String url) throws IOException;
+
+    /**
+     * Releases the files the source holds open.
+     */
+    default void close() throws IOException {
+    }
+}
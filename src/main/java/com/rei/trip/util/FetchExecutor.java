@@ -0,0 +1,109 @@
+package com.rei.trip.util;
+
+import com.rei.trip.exception.DataBuilderException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded executor for Documentum fetches.
+ * Per-trip work is submitted to a fixed pool (global parallelism); the per-host
+ * limit of the network reads themselves is kept by HttpTransport.
+ *
+ * @author sahan
+ */
+public class FetchExecutor {
+    private static int parallelism = TripConstants.FETCH_PARALLELISM;
+    private static ExecutorService executor;
+
+    /**
+     * Defined to prevent instances of this class from being created.
+     */
+    private FetchExecutor() {
+    }
+
+    /**
+     * Sets the global limit. Must be called before the first task is submitted.
+     */
+    public static synchronized void configure(int globalLimit) {
+        parallelism = Math.max(1, globalLimit);
+    }
+
+    static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+                Thread thread = new Thread(runnable, "trip-fetch-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Runs the tasks on the fetch pool and returns their results in submission order.
+     */
+    public static <T> List<T> invokeAll(List<Callable<T>> tasks) throws DataBuilderException {
+        List<Future<T>> futures = new ArrayList<>();
+        for (Callable<T> task : tasks) {
+            futures.add(submit(task));
+        }
+
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : futures) {
+                results.add(getResult(future));
+            }
+        } finally {
+            cancelAll(futures);
+        }
+
+        return results;
+    }
+
+    /**
+     * Starts a task on the fetch pool, for callers that hand out work while still reading their input.
+     */
+    public static <T> Future<T> submit(Callable<T> task) {
+        return getExecutor().submit(task);
+    }
+
+    /**
+     * Waits for a submitted task and rethrows its failure as a DataBuilderException.
+     */
+    public static <T> T getResult(Future<T> future) throws DataBuilderException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataBuilderException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DataBuilderException) {
+                throw (DataBuilderException) e.getCause();
+            }
+            throw new DataBuilderException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    public static void cancelAll(Collection<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+}
@@ -0,0 +1,227 @@
+package com.rei.trip.util;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persistent HTTP cache for Documentum documents.
+ * Bodies are stored on disk with their ETag/Last-Modified validators and revalidated
+ * with a conditional GET through HttpTransport, so an unchanged document costs one 304 response.
+ * The cache is capped in size and evicts the least recently used entries.
+ *
+ * @author sahan
+ */
+public class HttpCache {
+    private static final String META_SUFFIX = ".meta";
+    private static final String BODY_SUFFIX = ".body";
+
+    private static boolean enabled = true;
+    private static File directory = new File(TripConstants.HTTP_CACHE_PATH);
+    private static long maxSize = TripConstants.HTTP_CACHE_MAX_SIZE;
+    private static boolean compress = false;
+
+    // entry key -> body size on disk, in least recently used order
+    private static LinkedHashMap<String, Long> index;
+    private static long totalSize;
+
+    private static final AtomicLong revalidated = new AtomicLong();
+    private static final AtomicLong downloaded = new AtomicLong();
+
+    /**
+     * Defined to prevent instances of this class from being created.
+     */
+    private HttpCache() {
+    }
+
+    public static synchronized void configure(boolean useCache, String path, long sizeLimit, boolean compressBodies) {
+        enabled = useCache;
+        directory = new File(path);
+        maxSize = sizeLimit;
+        compress = compressBodies;
+        index = null;
+    }
+
+    /**
+     * Gets the document at the url, serving it from disk when the server answers 304 Not Modified.
+     */
+    public static byte[] get(String url) throws IOException {
+        if (!enabled) {
+            return download(url);
+        }
+
+        String key = getKey(url);
+        Properties meta = readMeta(key);
+        File body = new File(directory, key + BODY_SUFFIX);
+
+        if (meta != null && !body.exists()) {
+            meta = null;
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        if (meta != null) {
+            if (meta.containsKey("etag")) {
+                headers.put("If-None-Match", meta.getProperty("etag"));
+            }
+            if (meta.containsKey("lastModified")) {
+                headers.put("If-Modified-Since", meta.getProperty("lastModified"));
+            }
+        }
+
+        HttpTransport.Response response = HttpTransport.get(url, headers);
+        if (response.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            touch(key, body);
+            try {
+                byte[] content = readBody(body, Boolean.parseBoolean(meta.getProperty("compressed")));
+                revalidated.incrementAndGet();
+                return content;
+            } catch (IOException e) {
+                // evicted or damaged meanwhile, fetch it again unconditionally
+                response = HttpTransport.get(url);
+            }
+        }
+
+        downloaded.incrementAndGet();
+        byte[] content = response.getBody();
+        String etag = response.getHeader("ETag");
+        String lastModified = response.getHeader("Last-Modified");
+        if (etag != null || lastModified != null) {
+            store(key, url, etag, lastModified, content);
+        }
+
+        return content;
+    }
+
+    private static byte[] download(String url) throws IOException {
+        downloaded.incrementAndGet();
+        return HttpTransport.get(url).getBody();
+    }
+
+    private static Properties readMeta(String key) {
+        File file = new File(directory, key + META_SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+
+        Properties meta = new Properties();
+        try (InputStream input = new FileInputStream(file)) {
+            meta.load(input);
+        } catch (IOException e) {
+            return null;
+        }
+        return meta;
+    }
+
+    private static byte[] readBody(File body, boolean compressed) throws IOException {
+        InputStream input = new BufferedInputStream(new FileInputStream(body));
+        if (compressed) {
+            input = new GZIPInputStream(input);
+        }
+        try {
+            return IOUtils.toByteArray(input);
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    private static void store(String key, String url, String etag, String lastModified, byte[] content) {
+        try {
+            loadIndex();
+            File body = new File(directory, key + BODY_SUFFIX);
+            File bodyTmp = File.createTempFile(key, BODY_SUFFIX, directory);
+            try (OutputStream output = compress
+                    ? new GZIPOutputStream(new FileOutputStream(bodyTmp))
+                    : new BufferedOutputStream(new FileOutputStream(bodyTmp))) {
+                output.write(content);
+            }
+
+            Properties meta = new Properties();
+            meta.setProperty("url", url);
+            meta.setProperty("compressed", String.valueOf(compress));
+            if (etag != null) {
+                meta.setProperty("etag", etag);
+            }
+            if (lastModified != null) {
+                meta.setProperty("lastModified", lastModified);
+            }
+            File metaTmp = File.createTempFile(key, META_SUFFIX, directory);
+            try (OutputStream output = new FileOutputStream(metaTmp)) {
+                meta.store(output, null);
+            }
+
+            Files.move(bodyTmp.toPath(), body.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(metaTmp.toPath(), new File(directory, key + META_SUFFIX).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            record(key, body.length());
+        } catch (IOException e) {
+            System.out.println("Unable to cache " + url + ": " + e.getMessage());
+        }
+    }
+
+    private static synchronized void touch(String key, File body) {
+        body.setLastModified(System.currentTimeMillis());
+        if (index != null && index.containsKey(key)) {
+            index.put(key, index.remove(key));
+        }
+    }
+
+    private static synchronized void record(String key, long size) {
+        Long previous = index.remove(key);
+        if (previous != null) {
+            totalSize -= previous;
+        }
+        index.put(key, size);
+        totalSize += size;
+
+        // evict least recently used entries
+        Iterator<Map.Entry<String, Long>> entries = index.entrySet().iterator();
+        while (totalSize > maxSize && entries.hasNext()) {
+            Map.Entry<String, Long> eldest = entries.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            new File(directory, eldest.getKey() + META_SUFFIX).delete();
+            new File(directory, eldest.getKey() + BODY_SUFFIX).delete();
+            totalSize -= eldest.getValue();
+            entries.remove();
+        }
+    }
+
+    /**
+     * Loads the entries already on disk, oldest access first.
+     */
+    private static synchronized void loadIndex() throws IOException {
+        if (index != null) {
+            return;
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create cache directory " + directory);
+        }
+
+        File[] bodies = directory.listFiles((dir, name) -> name.endsWith(BODY_SUFFIX));
+        Arrays.sort(bodies, Comparator.comparingLong(File::lastModified));
+        index = new LinkedHashMap<>();
+        totalSize = 0;
+        for (File body : bodies) {
+            String name = body.getName();
+            index.put(name.substring(0, name.length() - BODY_SUFFIX.length()), body.length());
+            totalSize += body.length();
+        }
+    }
+
+    private static String getKey(String url) {
+        return TripUtils.hash(url.getBytes(Charset.forName("UTF-8")));
+    }
+
+    public static String getStats() {
+        return "HTTP cache: " + revalidated.get() + " not modified, " + downloaded.get() + " downloaded";
+    }
+}
@@ -0,0 +1,30 @@
+package com.rei.trip.util;
+
+import java.io.IOException;
+
+/**
+ * Reads documents from the CMS over HTTP, through the persistent HTTP cache.
+ * Documents are still known by their TripConstants.DOC_BASE urls; with another base given, e.g. a
+ * staging CMS or a local test server, the requests go there instead.
+ *
+ * @author sahan
+ */
+public class HttpDocumentSource implements DocumentSource {
+    private final String docBase;
+
+    public HttpDocumentSource() {
+        this(TripConstants.DOC_BASE);
+    }
+
+    public HttpDocumentSource(String docBase) {
+        this.docBase = docBase.endsWith("/") ? docBase.substring(0, docBase.length() - 1) : docBase;
+    }
+
+    @Override
+    public byte[] read(String url) throws IOException {
+        if (url.startsWith(TripConstants.DOC_BASE) && !docBase.equals(TripConstants.DOC_BASE)) {
+            url = docBase + url.substring(TripConstants.DOC_BASE.length());
+        }
+        return HttpCache.get(url);
+    }
+}
@@ -0,0 +1,207 @@
+package com.rei.trip.util;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * HTTP transport for Documentum requests.
+ * Every request asks for gzip, has connect and read timeouts and holds a permit of its host while
+ * in flight; a request backing off before a retry does not. Transient failures (timeouts,
+ * connection errors, 429 and 5xx responses) are retried with jittered exponential backoff.
+ * Responses are always read to the end and closed, so the JDK keeps the connections alive and
+ * reuses them from its pool.
+ *
+ * @author sahan
+ */
+public class HttpTransport {
+    private static int perHostLimit = TripConstants.FETCH_PER_HOST_LIMIT;
+    private static int connectTimeout = TripConstants.HTTP_CONNECT_TIMEOUT;
+    private static int readTimeout = TripConstants.HTTP_READ_TIMEOUT;
+    private static int maxRetries = TripConstants.HTTP_MAX_RETRIES;
+    private static final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+    private static final AtomicLong requests = new AtomicLong();
+    private static final AtomicLong retries = new AtomicLong();
+
+    /**
+     * A response read to the end.
+     */
+    public static class Response {
+        private final int status;
+        private final byte[] body;
+        private final URLConnection connection;
+
+        private Response(int status, byte[] body, URLConnection connection) {
+            this.status = status;
+            this.body = body;
+            this.connection = connection;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+    }
+
+    /**
+     * Defined to prevent instances of this class from being created.
+     */
+    private HttpTransport() {
+    }
+
+    /**
+     * Sets the per-host limit, the timeouts (in milliseconds) and the number of retries.
+     * Must be called before the first request, as the JDK sizes its keep-alive pool once.
+     */
+    public static synchronized void configure(int hostLimit, int connectTimeoutMillis, int readTimeoutMillis,
+                                              int retryCount) {
+        perHostLimit = Math.max(1, hostLimit);
+        connectTimeout = connectTimeoutMillis;
+        readTimeout = readTimeoutMillis;
+        maxRetries = Math.max(0, retryCount);
+        hostPermits.clear();
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(perHostLimit));
+    }
+
+    public static Response get(String url) throws IOException {
+        return get(url, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Gets the url with the request headers. A 304 response is returned with an empty body,
+     * 404 and 410 are thrown as FileNotFoundException.
+     */
+    public static Response get(String url, Map<String, String> headers) throws IOException {
+        Semaphore permits = hostPermits.computeIfAbsent(getHost(url), host -> new Semaphore(perHostLimit));
+        for (int attempt = 0; ; attempt++) {
+            // the permit is held by each attempt only, not while backing off
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + url);
+            }
+            try {
+                return request(url, headers);
+            } catch (FileNotFoundException | UnknownHostException | MalformedURLException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt >= maxRetries || e instanceof NonTransientException) {
+                    throw e;
+                }
+                retries.incrementAndGet();
+                RunMetrics.recordError("retry");
+                System.out.println("Retrying " + url + " (" + e.getMessage() + ")");
+            } finally {
+                permits.release();
+            }
+            backoff(url, attempt);
+        }
+    }
+
+    private static Response request(String url, Map<String, String> headers) throws IOException {
+        requests.incrementAndGet();
+        URLConnection connection = new URL(url).openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        if (!(connection instanceof HttpURLConnection)) {
+            return new Response(200, read(connection, connection.getInputStream()), connection);
+        }
+
+        HttpURLConnection http = (HttpURLConnection) connection;
+        int status = http.getResponseCode();
+        if (status >= 200 && status < 300) {
+            return new Response(status, read(http, http.getInputStream()), http);
+        }
+
+        // read the error body to the end so the connection goes back to the pool
+        read(http, http.getErrorStream());
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return new Response(status, new byte[0], http);
+        }
+        if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE) {
+            throw new FileNotFoundException(url);
+        }
+        if (status == 429 || status >= 500) {
+            throw new IOException("HTTP " + status + " for " + url);
+        }
+        throw new NonTransientException("HTTP " + status + " for " + url);
+    }
+
+    private static byte[] read(URLConnection connection, InputStream stream) throws IOException {
+        if (stream == null) {
+            return new byte[0];
+        }
+        InputStream input = new BufferedInputStream(stream);
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            input = new GZIPInputStream(input);
+        }
+        try {
+            return IOUtils.toByteArray(input);
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Sleeps a random time up to the exponential delay of the attempt.
+     */
+    private static void backoff(String url, int attempt) throws IOException {
+        long delay = Math.min(TripConstants.HTTP_RETRY_MAX_DELAY, TripConstants.HTTP_RETRY_BASE_DELAY << attempt);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(delay + 1));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while retrying " + url);
+        }
+    }
+
+    private static String getHost(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    public static String getStats() {
+        return "HTTP: " + requests.get() + " requests, " + retries.get() + " retried";
+    }
+
+    /**
+     * A failure that will not go away by asking again, e.g. 403 Forbidden.
+     */
+    private static class NonTransientException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private NonTransientException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.rei.trip.util;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Streams a JSONObject straight into a UTF-8 file.
+ * The output is the same as serializing the object to a string, re-reading it with
+ * Jackson and pretty printing it, without the intermediate string and tree copies.
+ * Output can be minified for serving instead; pretty printing stays the default for debugging.
+ *
+ * @author sahan
+ */
+public class JsonFileWriter {
+    private static final JsonFactory factory = new JsonFactory();
+    private static volatile boolean minify = false;
+
+    /**
+     * Defined to prevent instances of this class from being created.
+     */
+    private JsonFileWriter() {
+    }
+
+    /**
+     * Writes minified json instead of pretty printed json.
+     */
+    public static void configure(boolean minified) {
+        minify = minified;
+    }
+
+    public static void write(File file, JSONObject obj) throws IOException, JSONException {
+        write(Files.newOutputStream(file.toPath()), obj);
+    }
+
+    /**
+     * Writes the object to the stream and closes it.
+     */
+    public static void write(OutputStream output, JSONObject obj) throws IOException, JSONException {
+        long start = System.nanoTime();
+        CountingOutputStream counted = new CountingOutputStream(output);
+        try (JsonGenerator generator = factory.createGenerator(counted, JsonEncoding.UTF8)) {
+            if (!minify) {
+                generator.setPrettyPrinter(new DefaultPrettyPrinter());
+            }
+            writeValue(generator, obj);
+        }
+        RunMetrics.recordWrite(start, counted.getByteCount());
+    }
+
+    private static void writeObject(JsonGenerator generator, JSONObject obj) throws IOException, JSONException {
+        generator.writeStartObject();
+        Iterator<?> keys = obj.keys();
+        while (keys.hasNext()) {
+            String key = keys.next().toString();
+            generator.writeFieldName(key);
+            writeValue(generator, obj.get(key));
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeArray(JsonGenerator generator, JSONArray array) throws IOException, JSONException {
+        generator.writeStartArray();
+        for (int i = 0; i < array.length(); i++) {
+            writeValue(generator, array.get(i));
+        }
+        generator.writeEndArray();
+    }
+
+    private static void writeValue(JsonGenerator generator, Object value) throws IOException, JSONException {
+        if (value == null || value.equals(null)) {
+            generator.writeNull();
+        } else if (value instanceof JSONObject) {
+            writeObject(generator, (JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            writeArray(generator, (JSONArray) value);
+        } else if (value instanceof Map) {
+            writeObject(generator, new JSONObject((Map) value));
+        } else if (value instanceof Collection) {
+            writeArray(generator, new JSONArray((Collection) value));
+        } else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        } else if (value instanceof Number) {
+            writeNumber(generator, JSONObject.numberToString((Number) value));
+        } else {
+            generator.writeString(value.toString());
+        }
+    }
+
+    /**
+     * Writes a number the way it comes out of a JSONObject string read back by Jackson:
+     * integers keep their digits and decimals are printed as doubles.
+     */
+    private static void writeNumber(JsonGenerator generator, String number) throws IOException {
+        if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+            generator.writeNumber(number);
+        } else {
+            generator.writeNumber(Double.parseDouble(number));
+        }
+    }
+}
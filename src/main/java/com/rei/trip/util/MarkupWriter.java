@@ -0,0 +1,210 @@
+package com.rei.trip.util;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Serializes DOM fragments of the Documentum xmls (paragraphs, notes, overviews) to their
+ * outer markup, normalizing whitespace while writing instead of post-processing the string.
+ *
+ * @author sahan
+ */
+public class MarkupWriter {
+    private static final ThreadLocal<StringBuilder> buffers = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+    /**
+     * How whitespace of the markup is written.
+     */
+    public enum Whitespace {
+        /** As is. */
+        PRESERVE(false, false, false),
+        /** Without \r, \n and \t. */
+        STRIP(true, true, false),
+        /** Without \r, \n and \t, other whitespace runs collapsed into one space. */
+        STRIP_AND_COLLAPSE(true, true, true),
+        /** Without \r and \n, other whitespace runs (tabs included) collapsed into one space. */
+        COLLAPSE(true, false, true);
+
+        private final boolean stripBreaks;
+        private final boolean stripTabs;
+        private final boolean collapse;
+
+        Whitespace(boolean stripBreaks, boolean stripTabs, boolean collapse) {
+            this.stripBreaks = stripBreaks;
+            this.stripTabs = stripTabs;
+            this.collapse = collapse;
+        }
+    }
+
+    private final StringBuilder out;
+    private final Whitespace whitespace;
+
+    private MarkupWriter(StringBuilder out, Whitespace whitespace) {
+        this.out = out;
+        this.whitespace = whitespace;
+    }
+
+    /**
+     * Gets the markup of a node, e.g. "<p>Day <b>1</b></p>".
+     */
+    public static String toString(Node node, Whitespace whitespace) {
+        StringBuilder buffer = buffers.get();
+        buffer.setLength(0);
+        append(buffer, node, whitespace);
+        String markup = buffer.toString();
+        if (buffer.capacity() > 65536) {
+            buffers.remove();
+        }
+        return markup;
+    }
+
+    /**
+     * Appends the markup of a node to the builder. Whitespace is collapsed across the node
+     * boundary too, as if the builder's content had been normalized as a whole.
+     */
+    public static void append(StringBuilder out, Node node, Whitespace whitespace) {
+        new MarkupWriter(out, whitespace).writeNode(node);
+    }
+
+    /**
+     * Normalizes the whitespace of plain text.
+     */
+    public static String normalize(String text, Whitespace whitespace) {
+        StringBuilder buffer = new StringBuilder(text.length());
+        new MarkupWriter(buffer, whitespace).write(text);
+        return buffer.toString();
+    }
+
+    private void writeNode(Node node) {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                writeElement(node);
+                break;
+            case Node.TEXT_NODE:
+                writeEscaped(node.getNodeValue(), false);
+                break;
+            case Node.CDATA_SECTION_NODE:
+                write("<![CDATA[");
+                write(node.getNodeValue());
+                write("]]>");
+                break;
+            case Node.COMMENT_NODE:
+                write("<!--");
+                write(node.getNodeValue());
+                write("-->");
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                write("<?");
+                write(node.getNodeName());
+                write(' ');
+                write(node.getNodeValue());
+                write("?>");
+                break;
+            case Node.ENTITY_REFERENCE_NODE:
+                write('&');
+                write(node.getNodeName());
+                write(';');
+                break;
+            case Node.DOCUMENT_NODE:
+            case Node.DOCUMENT_FRAGMENT_NODE:
+                writeChildren(node);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void writeElement(Node element) {
+        String name = element.getNodeName();
+        write('<');
+        write(name);
+
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Node attribute = attributes.item(i);
+            write(' ');
+            write(attribute.getNodeName());
+            write("=\"");
+            writeEscaped(attribute.getNodeValue(), true);
+            write('"');
+        }
+
+        if (!element.hasChildNodes()) {
+            write("/>");
+            return;
+        }
+
+        write('>');
+        writeChildren(element);
+        write("</");
+        write(name);
+        write('>');
+    }
+
+    private void writeChildren(Node node) {
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            writeNode(child);
+        }
+    }
+
+    private void writeEscaped(String text, boolean isAttribute) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '"':
+                    out.append(isAttribute ? "&quot;" : "\"");
+                    break;
+                case '\n':
+                case '\r':
+                case '\t':
+                    if (isAttribute) {
+                        out.append("&#").append((int) c).append(';');
+                    } else {
+                        write(c);
+                    }
+                    break;
+                default:
+                    write(c);
+            }
+        }
+    }
+
+    private void write(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            write(text.charAt(i));
+        }
+    }
+
+    private void write(char c) {
+        if ((c == '\r' || c == '\n') && whitespace.stripBreaks) {
+            return;
+        }
+        if (c == '\t' && whitespace.stripTabs) {
+            return;
+        }
+        if (whitespace.collapse && isWhitespace(c)) {
+            int length = out.length();
+            if (length > 0 && isWhitespace(out.charAt(length - 1))) {
+                return;
+            }
+            c = ' ';
+        }
+        out.append(c);
+    }
+
+    /**
+     * Same characters as \s in a regex.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -0,0 +1,66 @@
+package com.rei.trip.util;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Reads documents from a local mirror of the CMS, a directory or a zip file whose entries are the
+ * url paths, e.g. adventures/data/trip-list.xml. The host of the url is ignored.
+ *
+ * @author sahan
+ */
+public class MirrorDocumentSource implements DocumentSource {
+    private final Path root;
+    private final FileSystem zip;
+
+    public MirrorDocumentSource(String path) throws IOException {
+        Path mirror = Paths.get(path);
+        if (Files.isDirectory(mirror)) {
+            zip = null;
+            root = mirror;
+        } else if (Files.isRegularFile(mirror)) {
+            zip = FileSystems.newFileSystem(mirror, (ClassLoader) null);
+            root = zip.getPath("/");
+        } else {
+            throw new FileNotFoundException("No mirror at " + path);
+        }
+    }
+
+    @Override
+    public byte[] read(String url) throws IOException {
+        try {
+            return Files.readAllBytes(resolve(root, url));
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(url);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (zip != null) {
+            zip.close();
+        }
+    }
+
+    /**
+     * Gets the file of the url under the mirror root.
+     */
+    static Path resolve(Path root, String url) throws IOException {
+        String path = new URL(url).getPath();
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        Path file = root.resolve(path).normalize();
+        if (path.isEmpty() || !file.startsWith(root.normalize())) {
+            throw new FileNotFoundException(url);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,503 @@
+package com.rei.trip.util;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Builds an output tree in a staging directory and publishes it with an atomic swap.
+ * The output root (e.g. /opt/rei/sitedocs/adventures/tripData) is a symbolic link to a
+ * release directory under <root>.releases; publishing points the link to the new release
+ * in a single rename, so readers never see a half-written tree. A release that is not published,
+ * e.g. of a failed build, is aborted and its staging directory removed.
+ *
+ * Files that come out byte-identical to the published version are hard-linked to it instead
+ * of being written again, and outputs that were not rebuilt in this run are carried over from
+ * the build manifest. Anything else, e.g. files of trips that left the trip list, is simply not
+ * part of the new release, except for runs that rebuild only some trips in place and for the
+ * first publish over a plain output directory: those carry over the whole published tree.
+ *
+ * With precompression every served file of a release (json and html, but not e.g. runMetrics.json)
+ * gets a gzip sibling (<file>.gz, at the maximum level) for nginx gzip_static, and the release an
+ * etags.json of the strong ETags (content hashes) of those files, so conditional requests are
+ * answered without hashing at request time. The siblings of files linked from the published
+ * release are linked along with them; only new content is compressed and hashed, in parallel
+ * across files.
+ *
+ * @author sahan
+ */
+public class OutputPublisher {
+    private static final String RELEASES_SUFFIX = ".releases";
+
+    private static OutputPublisher tripData = new OutputPublisher(
+            TripConstants.TRIP_JSON_PATH, TripConstants.PROGRAM_MANAGERS_FILENAME);
+    private static OutputPublisher pageContent = new OutputPublisher(TripConstants.TRIP_CONTENT_PATH);
+    private static volatile boolean precompress = false;
+
+    private final File root;
+    private final File releases;
+    private final List<String> carriedFiles;
+    private File staging;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong linked = new AtomicLong();
+
+    public OutputPublisher(String rootPath, String... carriedFiles) {
+        this.root = new File(rootPath).getAbsoluteFile();
+        this.releases = new File(root.getParentFile(), root.getName() + RELEASES_SUFFIX);
+        this.carriedFiles = Arrays.asList(carriedFiles);
+    }
+
+    /**
+     * Moves both output trees under another directory, as <dir>/tripData and <dir>/pageContent.
+     * Must be called before the first release is begun.
+     */
+    public static synchronized void configure(String outputDir) {
+        tripData = new OutputPublisher(new File(outputDir, "tripData").getPath(),
+                TripConstants.PROGRAM_MANAGERS_FILENAME);
+        pageContent = new OutputPublisher(new File(outputDir, "pageContent").getPath());
+    }
+
+    /**
+     * Turns the gzip siblings and etags.json of the releases on or off.
+     */
+    public static void setPrecompress(boolean enabled) {
+        precompress = enabled;
+    }
+
+    /**
+     * Gets the publisher of the trip data tree or of the page content tree.
+     */
+    public static OutputPublisher get(boolean isContent) {
+        return isContent ? pageContent : tripData;
+    }
+
+    /**
+     * Starts a new release of the trip data tree and, unless the run builds no content, of the
+     * page content tree. A tree that was not begun is left as published.
+     */
+    public static void beginAll(boolean withContent) throws IOException {
+        tripData.begin();
+        if (withContent) {
+            pageContent.begin();
+        }
+    }
+
+    /**
+     * Drops the releases of both output trees that were begun but not published.
+     */
+    public static void abortAll() {
+        tripData.abort();
+        pageContent.abort();
+    }
+
+    /**
+     * Carries the outputs that were up to date over from the published release and publishes the
+     * trees that were begun.
+     */
+    public static void publishAll(Collection<String> outputs) throws IOException {
+        String contentPrefix = TripUtils.getOutputName("", true);
+        for (String output : outputs) {
+            if (output.startsWith(contentPrefix)) {
+                pageContent.carryOver(output.substring(contentPrefix.length()));
+            } else {
+                tripData.carryOver(output);
+            }
+        }
+        tripData.publish();
+        pageContent.publish();
+    }
+
+    public static String getStats() {
+        return "Output: " + (tripData.written.get() + pageContent.written.get()) + " written, "
+                + (tripData.linked.get() + pageContent.linked.get()) + " unchanged";
+    }
+
+    /**
+     * Gets the published version of an output file.
+     */
+    public File getPublishedFile(String filename) {
+        return new File(root, filename);
+    }
+
+    /**
+     * Gets the current version of an output file: the one written in the release being built,
+     * else the published one.
+     */
+    public File getCurrentFile(String filename) {
+        if (staging != null) {
+            File staged = new File(staging, filename);
+            if (staged.exists()) {
+                return staged;
+            }
+        }
+        return getPublishedFile(filename);
+    }
+
+    /**
+     * Creates the staging directory of a new release.
+     */
+    public synchronized void begin() throws IOException {
+        String id = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        staging = new File(releases, id);
+        for (int i = 1; staging.exists(); i++) {
+            staging = new File(releases, id + "-" + i);
+        }
+        if (!staging.mkdirs()) {
+            throw new IOException("Unable to create staging directory " + staging);
+        }
+    }
+
+    /**
+     * Opens an output file of the release being built. Without a release in progress the file is
+     * written in place.
+     */
+    public OutputStream openOutput(String filename) throws IOException {
+        File dir = staging != null ? staging : root;
+        File target = new File(dir, filename);
+        File parent = target.getParentFile();
+        if (!parent.exists()) {
+            parent.mkdirs();
+        }
+        Files.deleteIfExists(target.toPath());
+
+        if (staging == null) {
+            written.incrementAndGet();
+            return new BufferedOutputStream(new FileOutputStream(target));
+        }
+        return new StagedOutputStream(target, new File(root, filename));
+    }
+
+    /**
+     * Removes a staged output whose write failed, so no partial file is published.
+     */
+    public void discard(String filename) {
+        File dir = staging != null ? staging : root;
+        FileUtils.deleteQuietly(new File(dir, filename));
+    }
+
+    /**
+     * Copies a file built by another run, e.g. a shard, into the release being built.
+     */
+    public void importFile(String filename, File source) throws IOException {
+        try (OutputStream output = openOutput(filename)) {
+            Files.copy(source.toPath(), output);
+        }
+    }
+
+    /**
+     * Hard-links a published file into the release being built, unless it was written in this run.
+     */
+    public void carryOver(String filename) throws IOException {
+        if (staging == null) {
+            return;
+        }
+
+        File target = new File(staging, filename);
+        File published = new File(root, filename);
+        if (!target.exists() && published.exists()) {
+            File parent = target.getParentFile();
+            if (!parent.exists()) {
+                parent.mkdirs();
+            }
+            Files.createLink(target.toPath(), published.toPath());
+            linked.incrementAndGet();
+        }
+    }
+
+    /**
+     * Hard-links every published file into the release being built, unless it was written in this
+     * run, for runs that rebuild only part of the tree and for the first publish over a plain
+     * directory. The gzip siblings and etags.json are left to precompression.
+     */
+    public void carryOverPublished() throws IOException {
+        if (staging == null || !root.exists()) {
+            return;
+        }
+
+        Path published = root.toPath().toRealPath();
+        List<String> filenames = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(published)) {
+            paths.filter(Files::isRegularFile)
+                    .map(path -> published.relativize(path).toString().replace(File.separatorChar, '/'))
+                    .filter(name -> !name.endsWith(TripConstants.GZIP_SUFFIX)
+                            && !name.equals(TripConstants.ETAGS_FILENAME))
+                    .forEach(filenames::add);
+        }
+        for (String filename : filenames) {
+            carryOver(filename);
+        }
+    }
+
+    /**
+     * Points the output root to the staged release in one atomic rename.
+     */
+    public synchronized void publish() throws IOException {
+        if (staging == null) {
+            return;
+        }
+        for (String filename : carriedFiles) {
+            carryOver(filename);
+        }
+        if (root.exists() && !Files.isSymbolicLink(root.toPath())) {
+            // first publish: the files of the plain directory that were not rewritten stay published
+            carryOverPublished();
+        }
+        if (precompress) {
+            precompress();
+        }
+
+        Path link = root.toPath();
+        Path next = link.resolveSibling(root.getName() + ".next");
+        Files.deleteIfExists(next);
+        Files.createSymbolicLink(next, link.getParent().relativize(staging.toPath()));
+
+        String previous = null;
+        Path initial = null;
+        if (Files.isSymbolicLink(link)) {
+            previous = Files.readSymbolicLink(link).getFileName().toString();
+        } else if (Files.exists(link)) {
+            // first publish: the plain directory becomes the first release. A directory cannot be
+            // replaced by a link in one rename, so the link is ready to take its place right away.
+            previous = "initial-" + staging.getName();
+            initial = new File(releases, previous).toPath();
+            Files.move(link, initial, StandardCopyOption.ATOMIC_MOVE);
+        }
+        try {
+            Files.move(next, link, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (initial != null) {
+                Files.move(initial, link, StandardCopyOption.ATOMIC_MOVE);
+            }
+            throw e;
+        }
+
+        // keep the previous release for rollback
+        File[] old = releases.listFiles();
+        if (old != null) {
+            for (File release : old) {
+                if (!release.getName().equals(staging.getName()) && !release.getName().equals(previous)) {
+                    FileUtils.deleteDirectory(release);
+                }
+            }
+        }
+        staging = null;
+    }
+
+    /**
+     * Removes the staging directory of a release that was begun but not published.
+     */
+    public synchronized void abort() {
+        if (staging != null) {
+            FileUtils.deleteQuietly(staging);
+            staging = null;
+        }
+    }
+
+    /**
+     * Writes the gzip siblings of the served files of the release and its etags.json. A file linked
+     * from the published release gets the published sibling linked too, and its ETags are taken
+     * from the published etags.json.
+     */
+    private void precompress() throws IOException {
+        Path stagingPath = staging.toPath();
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(stagingPath)) {
+            paths.filter(Files::isRegularFile)
+                    .filter(path -> isServed(path.getFileName().toString()))
+                    .forEach(files::add);
+        }
+
+        try {
+            List<Path> release = new ArrayList<>(files);
+            files.parallelStream().forEach(path -> {
+                String name = stagingPath.relativize(path).toString().replace(File.separatorChar, '/');
+                Path gzip = Paths.get(path + TripConstants.GZIP_SUFFIX);
+                Path publishedGzip = new File(root, name + TripConstants.GZIP_SUFFIX).toPath();
+                if (isPublished(path, name) && Files.exists(publishedGzip)) {
+                    link(gzip, publishedGzip);
+                } else {
+                    compress(path, gzip);
+                }
+                synchronized (release) {
+                    release.add(gzip);
+                }
+            });
+
+            Map<String, String> previous = readEtags();
+            Map<String, String> etags = new ConcurrentHashMap<>();
+            release.parallelStream().forEach(path -> {
+                String name = stagingPath.relativize(path).toString().replace(File.separatorChar, '/');
+                String etag = previous.get(name);
+                if (etag == null || !isPublished(path, name)) {
+                    etag = "\"" + hash(path) + "\"";
+                }
+                etags.put(name, etag);
+            });
+            new ObjectMapper().writeValue(new File(staging, TripConstants.ETAGS_FILENAME), new TreeMap<>(etags));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private Map<String, String> readEtags() {
+        File file = new File(root, TripConstants.ETAGS_FILENAME);
+        if (file.exists()) {
+            try {
+                return new ObjectMapper().readValue(file, new TypeReference<Map<String, String>>() {
+                });
+            } catch (IOException e) {
+                System.out.println("Unable to read " + file + ": " + e.getMessage());
+            }
+        }
+        return new HashMap<>();
+    }
+
+    /**
+     * Returns true if the staged file is a link to the published file of the same name.
+     */
+    private boolean isPublished(Path staged, String name) {
+        Path published = new File(root, name).toPath();
+        try {
+            return Files.exists(published) && Files.isSameFile(staged, published);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns true for the files a release serves: json and html, but not the etags.json, run
+     * metrics or shard manifest of the build.
+     */
+    private static boolean isServed(String filename) {
+        if (filename.equals(TripConstants.ETAGS_FILENAME) || filename.equals(TripConstants.RUN_METRICS_FILENAME)
+                || filename.equals(TripConstants.SHARD_MANIFEST_FILENAME)) {
+            return false;
+        }
+        for (String extension : TripConstants.SERVED_EXTENSIONS) {
+            if (filename.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void link(Path link, Path existing) {
+        try {
+            Files.createLink(link, existing);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void compress(Path source, Path target) {
+        try (InputStream input = Files.newInputStream(source);
+             OutputStream output = new GZIPOutputStream(Files.newOutputStream(target), 64 * 1024) {
+                 {
+                     def.setLevel(Deflater.BEST_COMPRESSION);
+                 }
+             }) {
+            IOUtils.copy(input, output);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String hash(Path path) {
+        try {
+            return TripUtils.hash(Files.readAllBytes(path));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Compares what is written with the published file and only starts writing the staged file
+     * once the content differs. An identical file ends up as a hard link to the published one.
+     */
+    private class StagedOutputStream extends OutputStream {
+        private final File target;
+        private final File published;
+        private InputStream publishedInput;
+        private OutputStream output;
+        private long matched;
+
+        private StagedOutputStream(File target, File published) throws IOException {
+            this.target = target;
+            this.published = published;
+            if (published.exists()) {
+                publishedInput = new BufferedInputStream(new FileInputStream(published));
+            } else {
+                diverge();
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (output == null) {
+                int i = 0;
+                while (i < len && publishedInput.read() == (b[off + i] & 0xff)) {
+                    i++;
+                }
+                matched += i;
+                if (i == len) {
+                    return;
+                }
+                diverge();
+                off += i;
+                len -= i;
+            }
+            output.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (output == null && publishedInput.read() != -1) {
+                diverge();
+            }
+
+            if (output != null) {
+                output.close();
+                written.incrementAndGet();
+            } else {
+                publishedInput.close();
+                Files.createLink(target.toPath(), published.toPath());
+                linked.incrementAndGet();
+            }
+        }
+
+        /**
+         * Opens the staged file and copies the part that matched so far.
+         */
+        private void diverge() throws IOException {
+            if (publishedInput != null) {
+                publishedInput.close();
+                publishedInput = null;
+            }
+            output = new BufferedOutputStream(new FileOutputStream(target));
+            if (matched > 0) {
+                try (InputStream input = new FileInputStream(published)) {
+                    IOUtils.copyLarge(input, output, 0, matched);
+                }
+            }
+        }
+    }
+}
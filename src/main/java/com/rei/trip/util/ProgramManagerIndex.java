@@ -0,0 +1,105 @@
+package com.rei.trip.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Program managers of the trips, read from programManagers.txt.
+ * Each line is "<anything>@<tripId>@<name>@<description>@<image>". The file is loaded once
+ * into a map keyed by lower-cased trip id and read again only when it changes on disk.
+ *
+ * @author sahan
+ */
+public class ProgramManagerIndex {
+    private static final String SEPARATOR = "@";
+
+    private static File loadedFile;
+    private static long loadedModified;
+    private static long loadedLength;
+    private static volatile Map<String, ProgramManager> managers = Collections.emptyMap();
+
+    /**
+     * A program manager entry of the file.
+     */
+    public static class ProgramManager {
+        private final String name;
+        private final String description;
+        private final String image;
+
+        private ProgramManager(String name, String description, String image) {
+            this.name = name;
+            this.description = description;
+            this.image = image;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * Gets the image file name, relative to the region's program manager image folder.
+         */
+        public String getImage() {
+            return image;
+        }
+    }
+
+    /**
+     * Defined to prevent instances of this class from being created.
+     */
+    private ProgramManagerIndex() {
+    }
+
+    /**
+     * Gets the program manager of a trip, or null if the trip has none.
+     */
+    public static ProgramManager get(String path, String tripId) {
+        return load(new File(path)).get(tripId);
+    }
+
+    private static synchronized Map<String, ProgramManager> load(File file) {
+        long modified = file.lastModified();
+        long length = file.length();
+        if (file.equals(loadedFile) && modified == loadedModified && length == loadedLength) {
+            return managers;
+        }
+
+        Map<String, ProgramManager> loaded = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), Charset.forName("UTF-8"))) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] item = line.split(SEPARATOR);
+                if (item.length < 5) {
+                    System.out.println("Skip malformed program manager line " + number + " of " + file + ": " + line);
+                    continue;
+                }
+                // the first line of a trip wins
+                loaded.putIfAbsent(item[1].toLowerCase(), new ProgramManager(item[2], item[3], item[4]));
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to read program managers from " + file + ": " + e.getMessage());
+        }
+
+        managers = Collections.unmodifiableMap(loaded);
+        loadedFile = file;
+        loadedModified = modified;
+        loadedLength = length;
+
+        return managers;
+    }
+}
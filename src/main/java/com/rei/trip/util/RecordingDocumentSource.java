@@ -0,0 +1,42 @@
+package com.rei.trip.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Reads documents from another source and saves every document read into a mirror directory,
+ * so a live run can be replayed later with MirrorDocumentSource.
+ *
+ * @author sahan
+ */
+public class RecordingDocumentSource implements DocumentSource {
+    private final DocumentSource source;
+    private final Path root;
+
+    public RecordingDocumentSource(DocumentSource source, String path) throws IOException {
+        this.source = source;
+        this.root = Paths.get(path);
+        Files.createDirectories(root);
+    }
+
+    @Override
+    public byte[] read(String url) throws IOException {
+        byte[] content = source.read(url);
+
+        Path file = MirrorDocumentSource.resolve(root, url);
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        Files.write(tmp, content);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return content;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
@@ -0,0 +1,263 @@
+package com.rei.trip.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of a run: per-stage timers, fetch latency histograms per document type, bytes fetched
+ * and written, the slowest urls and errors by category. Written as runMetrics.json next to
+ * tripList.json once the run is over, published or failed, so runs can be compared.
+ *
+ * Stages are discovery (the read of the trip list), fetch (of the xmls of each trip), basic, detail,
+ * gallery, extension, content, write and publish; their times are summed over the threads running
+ * them. Error categories are notFound, fetch, retry, parse, transform, write and noGroupSize.
+ * failed tells whether the run itself failed; in watch mode failedRuns counts the runs of the
+ * process that failed, so a failed cycle still shows in the metrics of the next one.
+ *
+ * @author sahan
+ */
+public class RunMetrics {
+    /**
+     * Upper bounds of the latency histogram buckets, in milliseconds.
+     */
+    private static final long[] BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    private static final Map<String, Timer> stages = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> fetches = new ConcurrentHashMap<>();
+    private static final Map<String, AtomicLong> errors = new ConcurrentHashMap<>();
+    private static final AtomicLong writtenFiles = new AtomicLong();
+    private static final AtomicLong writtenBytes = new AtomicLong();
+    private static final AtomicLong failedRuns = new AtomicLong();
+    private static volatile boolean failed = false;
+    private static final PriorityQueue<SlowUrl> slowest = new PriorityQueue<>();
+    private static volatile long started = System.currentTimeMillis();
+    private static volatile long startedNanos = System.nanoTime();
+
+    /**
+     * Time spent in a stage.
+     */
+    private static class Timer {
+        final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("count", count.get());
+            json.put("totalMs", totalNanos.get() / 1000000);
+            json.put("maxMs", maxNanos.get() / 1000000);
+            return json;
+        }
+    }
+
+    /**
+     * Fetch latencies and sizes of a document type.
+     */
+    private static class Histogram extends Timer {
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+
+        void record(long nanos, int size) {
+            record(nanos);
+            bytes.addAndGet(size);
+            long millis = nanos / 1000000;
+            int bucket = 0;
+            while (bucket < BUCKETS.length && millis >= BUCKETS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+        }
+
+        @Override
+        JSONObject toJson() throws JSONException {
+            JSONObject json = super.toJson();
+            json.put("bytes", bytes.get());
+            JSONArray histogram = new JSONArray();
+            for (int i = 0; i < buckets.length(); i++) {
+                JSONObject bucket = new JSONObject();
+                bucket.put("lessThanMs", i < BUCKETS.length ? String.valueOf(BUCKETS[i]) : "+Inf");
+                bucket.put("count", buckets.get(i));
+                histogram.put(bucket);
+            }
+            json.put("histogram", histogram);
+            return json;
+        }
+    }
+
+    private static class SlowUrl implements Comparable<SlowUrl> {
+        private final String url;
+        private final long nanos;
+
+        private SlowUrl(String url, long nanos) {
+            this.url = url;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public int compareTo(SlowUrl other) {
+            return Long.compare(nanos, other.nanos);
+        }
+    }
+
+    /**
+     * Defined to prevent instances of this class from being created.
+     */
+    private RunMetrics() {
+    }
+
+    /**
+     * Starts the metrics of a new run.
+     */
+    public static synchronized void begin() {
+        stages.clear();
+        fetches.clear();
+        errors.clear();
+        writtenFiles.set(0);
+        writtenBytes.set(0);
+        slowest.clear();
+        failed = false;
+        started = System.currentTimeMillis();
+        startedNanos = System.nanoTime();
+    }
+
+    /**
+     * Records the time of a stage since startNanos, a System.nanoTime().
+     */
+    public static void recordStage(String stage, long startNanos) {
+        stages.computeIfAbsent(stage, key -> new Timer()).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records a document read from the document source.
+     */
+    public static void recordFetch(String url, long startNanos, int size) {
+        long nanos = System.nanoTime() - startNanos;
+        fetches.computeIfAbsent(getDocumentType(url), key -> new Histogram()).record(nanos, size);
+
+        synchronized (slowest) {
+            if (slowest.size() < TripConstants.METRICS_SLOWEST_URLS) {
+                slowest.add(new SlowUrl(url, nanos));
+            } else if (slowest.peek().nanos < nanos) {
+                slowest.poll();
+                slowest.add(new SlowUrl(url, nanos));
+            }
+        }
+    }
+
+    /**
+     * Records an output file written since startNanos.
+     */
+    public static void recordWrite(long startNanos, long size) {
+        recordStage("write", startNanos);
+        writtenFiles.incrementAndGet();
+        writtenBytes.addAndGet(size);
+    }
+
+    public static void recordError(String category) {
+        errors.computeIfAbsent(category, key -> new AtomicLong()).incrementAndGet();
+    }
+
+    /**
+     * Records a run that failed. Unlike the other metrics, failed runs are kept by begin().
+     */
+    public static void recordFailedRun() {
+        failed = true;
+        failedRuns.incrementAndGet();
+    }
+
+    /**
+     * Gets the type of a Documentum document by its url, e.g. "detail" for .../kil_dir/detail.xml.
+     */
+    static String getDocumentType(String url) {
+        if (url.endsWith(TripConstants.DOC_TRIP_LIST)) {
+            return "tripList";
+        } else if (url.endsWith(TripConstants.DOC_EXT_LIST_FILE_NAME)) {
+            return "crossSellList";
+        } else if (url.endsWith("listing-page-headers.xml")) {
+            return "listingPageHeaders";
+        } else if (url.endsWith(TripConstants.DOC_DETAIL_FILE_NAME)) {
+            return "detail";
+        } else if (url.endsWith(TripConstants.DOC_GEAR_FILE_NAME)) {
+            return "gearList";
+        } else if (url.endsWith(TripConstants.DOC_SLIDE_SHOW_FILE_NAME)) {
+            return "slideshow";
+        } else if (url.contains("/adventures/trips/")) {
+            return "trip";
+        }
+        return "other";
+    }
+
+    public static synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("started", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(started)));
+        json.put("wallMs", (System.nanoTime() - startedNanos) / 1000000);
+
+        JSONObject stageJson = new JSONObject();
+        for (Map.Entry<String, Timer> stage : stages.entrySet()) {
+            stageJson.put(stage.getKey(), stage.getValue().toJson());
+        }
+        json.put("stages", stageJson);
+
+        JSONObject fetchJson = new JSONObject();
+        long documents = 0;
+        long bytes = 0;
+        for (Map.Entry<String, Histogram> type : fetches.entrySet()) {
+            fetchJson.put(type.getKey(), type.getValue().toJson());
+            documents += type.getValue().count.get();
+            bytes += type.getValue().bytes.get();
+        }
+        JSONObject fetched = new JSONObject();
+        fetched.put("documents", documents);
+        fetched.put("bytes", bytes);
+        fetched.put("types", fetchJson);
+        json.put("fetched", fetched);
+
+        JSONObject written = new JSONObject();
+        written.put("files", writtenFiles.get());
+        written.put("bytes", writtenBytes.get());
+        json.put("written", written);
+
+        List<SlowUrl> slowUrls;
+        synchronized (slowest) {
+            slowUrls = new ArrayList<>(slowest);
+        }
+        Collections.sort(slowUrls, Collections.reverseOrder());
+        JSONArray slowJson = new JSONArray();
+        for (SlowUrl slowUrl : slowUrls) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("url", slowUrl.url);
+            item.put("ms", slowUrl.nanos / 1000000);
+            slowJson.put(new JSONObject(item));
+        }
+        json.put("slowestUrls", slowJson);
+
+        JSONObject errorJson = new JSONObject();
+        for (Map.Entry<String, AtomicLong> error : errors.entrySet()) {
+            errorJson.put(error.getKey(), error.getValue().get());
+        }
+        json.put("errors", errorJson);
+        json.put("failed", failed);
+        json.put("failedRuns", failedRuns.get());
+
+        return json;
+    }
+}
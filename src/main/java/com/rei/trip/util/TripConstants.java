@@ -23,14 +23,80 @@ public class TripConstants {
     public static final String DOC_EXT_LIST_FILE_NAME = "cross-sell-list.xml";
 
     public static final String TRIP_LIST_FILENAME = "tripList.json";
+    public static final String FACET_INDEX_FILENAME = "facetIndex.json";
+    public static final String CARDS_FILENAME = "cards.json";
+    public static final String DEPARTURE_INDEX_PATH = "departures/";
+    public static final String DEPARTURE_MONTHS_FILENAME = "months.json";
     public static final String TRIP_DETAIL = "detail";
     public static final String TRIP_GALLERY = "gallery";
     public static final String TRIP_DETAIL_FILENAME = TRIP_DETAIL + ".json";
     public static final String TRIP_GALLERY_FILENAME = TRIP_GALLERY + ".json";
+    public static final String TRIP_CROSS_SELL = "crossSell";
+    public static final String TRIP_CROSS_SELL_FILENAME = TRIP_CROSS_SELL + ".json";
     public static final String TRIP_JSON_PATH = "/opt/rei/sitedocs/adventures/tripData/";
     public static final String TRIP_CONTENT_PATH = "/opt/rei/sitedocs/adventures/pageContent/";
     //public static final String TRIP_JSON_PATH = "/resources/adventures/tripData/";
     public static final String TRIP_IMG_ASSETS_BASE = "/assets/img/adventures/trip/";
     public static final String TRIP_TYPE_REGULAR = "Regular trip";
     public static final String TRIP_TYPE_SIGNATURE_CAMPING = "signature-camping";
+    public static final String DEPARTURE_STATUS_OPEN = "open";
+    public static final String DEPARTURE_STATUS_SOLD_OUT = "Sold out";
+    // departure dates are calendar dates of the site, in its time zone
+    public static final String SITE_TIME_ZONE = "America/Los_Angeles";
+
+    /**
+     * Constants for the fetch executor
+     */
+    public static final int FETCH_PARALLELISM = 8;
+    public static final int FETCH_PER_HOST_LIMIT = 4;
+
+    /**
+     * Constants for the per-trip pipeline
+     */
+    public static final int PIPELINE_DEPTH = 32;
+    public static final int PIPELINE_WRITE_THREADS = 2;
+
+    /**
+     * Constants for the http transport, in milliseconds
+     */
+    public static final int HTTP_CONNECT_TIMEOUT = 10000;
+    public static final int HTTP_READ_TIMEOUT = 30000;
+    public static final int HTTP_MAX_RETRIES = 3;
+    public static final long HTTP_RETRY_BASE_DELAY = 250;
+    public static final long HTTP_RETRY_MAX_DELAY = 5000;
+
+    /**
+     * Constants for the persistent http cache
+     */
+    public static final String HTTP_CACHE_PATH = "/opt/rei/tripMigrator/httpCache/";
+    public static final long HTTP_CACHE_MAX_SIZE = 512L * 1024 * 1024;
+
+    /**
+     * Constants for incremental builds
+     */
+    public static final String BUILD_MANIFEST_PATH = "/opt/rei/tripMigrator/buildManifest.json";
+    public static final String PROGRAM_MANAGERS_FILENAME = "programManagers.txt";
+
+    /**
+     * Constants for sharded runs
+     */
+    public static final String SHARD_MANIFEST_FILENAME = "shardManifest.json";
+
+    /**
+     * Constants for precompressed output
+     */
+    public static final String GZIP_SUFFIX = ".gz";
+    public static final String ETAGS_FILENAME = "etags.json";
+    public static final String[] SERVED_EXTENSIONS = {".json", ".html"};
+
+    /**
+     * Constants for watch mode, in seconds
+     */
+    public static final int WATCH_INTERVAL = 300;
+
+    /**
+     * Constants for the run metrics
+     */
+    public static final String RUN_METRICS_FILENAME = "runMetrics.json";
+    public static final int METRICS_SLOWEST_URLS = 20;
 }
@@ -0,0 +1,93 @@
+package com.rei.trip.util;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming reader of trip-list.xml.
+ * Every trip path is handed to the handler with its region name as soon as both are read, and
+ * every region once its end tag is reached, so nothing but the current region is held in memory.
+ *
+ *     <tripList>
+ *         <region>
+ *             <regionName>Africa</regionName>
+ *             <trips>
+ *                 <trip>/adventures/trips/africa/kil.xml</trip>
+ *             </trips>
+ *         </region>
+ *     </tripList>
+ *
+ * @author sahan
+ */
+public class TripListReader {
+
+    /**
+     * Receives the entries of the trip list in document order.
+     */
+    public interface Handler {
+        void trip(String regionName, String path);
+
+        void region(String regionName, List<String> paths);
+    }
+
+    /**
+     * Defined to prevent instances of this class from being created.
+     */
+    private TripListReader() {
+    }
+
+    public static void read(InputStream input, Handler handler) throws IOException {
+        try {
+            XMLStreamReader reader = TripUtils.createXmlStreamReader(input);
+            try {
+                String regionName = null;
+                List<String> paths = null;
+                // trips read before the region name
+                int pending = 0;
+
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+                        if (name.equals("region")) {
+                            regionName = reader.getAttributeValue(null, "regionName");
+                            paths = new ArrayList<>();
+                            pending = 0;
+                        } else if (paths != null && name.equals("regionName")) {
+                            regionName = reader.getElementText().trim();
+                            for (String path : paths.subList(paths.size() - pending, paths.size())) {
+                                handler.trip(regionName, path);
+                            }
+                            pending = 0;
+                        } else if (paths != null && name.equals("trip")) {
+                            String path = reader.getElementText().trim();
+                            paths.add(path);
+                            if (regionName != null) {
+                                handler.trip(regionName, path);
+                            } else {
+                                pending++;
+                            }
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT && paths != null
+                            && reader.getLocalName().equals("region")) {
+                        if (regionName == null) {
+                            throw new IOException("Trip list region without regionName");
+                        }
+                        handler.region(regionName, paths);
+                        regionName = null;
+                        paths = null;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to read trip list: " + e.getMessage(), e);
+        }
+    }
+}
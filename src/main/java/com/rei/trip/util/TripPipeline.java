@@ -0,0 +1,159 @@
+package com.rei.trip.util;
+
+import com.rei.trip.exception.DataBuilderException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Per-trip staged pipeline: fetch -> transform -> write.
+ * Fetches run on the FetchExecutor pool, transforms on a pool sized to the cpus and writes on
+ * their own threads, each stage fed by a bounded queue. A stage whose queue is full runs the work
+ * on the submitting thread, which slows the stage before it down. The number of trips in flight
+ * is capped, and only the trips in flight are tracked, so neither the parsed documents nor the
+ * bookkeeping held at any time grow with the catalog.
+ *
+ * @author sahan
+ */
+public class TripPipeline {
+    private final Semaphore inFlight;
+    private final ExecutorService transformExecutor;
+    private final ExecutorService writeExecutor;
+    private final Set<CompletableFuture<?>> trips = ConcurrentHashMap.newKeySet();
+    private final Phaser pending = new Phaser(1);
+    private final List<Throwable> tripFailures = Collections.synchronizedList(new ArrayList<>());
+    private final List<Throwable> writeFailures = Collections.synchronizedList(new ArrayList<>());
+
+    public TripPipeline(int depth, int writeThreads) {
+        this.inFlight = new Semaphore(Math.max(1, depth));
+        this.transformExecutor = createExecutor("trip-transform-",
+                Runtime.getRuntime().availableProcessors(), Math.max(1, depth));
+        this.writeExecutor = createExecutor("trip-write-", Math.max(1, writeThreads), Math.max(1, depth));
+    }
+
+    private static ExecutorService createExecutor(String name, int threads, int queueDepth) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueDepth),
+                runnable -> {
+                    Thread thread = new Thread(runnable, name + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Starts a trip: fetch runs on the fetch pool, then transform gets its result. Blocks while the
+     * pipeline is full. The returned future completes with the fetch result once the trip is
+     * transformed; the pipeline forgets it then, so a result the caller needs is best kept by the
+     * transform.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> fetch, Consumer<T> transform) throws DataBuilderException {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataBuilderException(e);
+        }
+        pending.register();
+
+        CompletableFuture<T> trip = CompletableFuture.supplyAsync(() -> {
+            try {
+                return fetch.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, FetchExecutor.getExecutor()).thenApplyAsync(result -> {
+            transform.accept(result);
+            return result;
+        }, transformExecutor);
+        trips.add(trip);
+        trip.whenComplete((result, e) -> {
+            trips.remove(trip);
+            if (e != null && !trip.isCancelled()) {
+                tripFailures.add(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            }
+            inFlight.release();
+            pending.arriveAndDeregister();
+        });
+
+        return trip;
+    }
+
+    /**
+     * Hands a trip output to the write stage. The build manifest keeps the output once the write
+     * succeeds; a failed write removes the staged file, so nothing half-written is published, and
+     * fails the run in finish.
+     */
+    public CompletableFuture<Void> write(String filename, JSONObject obj) {
+        CompletableFuture<Void> write = CompletableFuture.runAsync(() -> {
+            try {
+                JsonFileWriter.write(OutputPublisher.get(false).openOutput(filename), obj);
+            } catch (Exception e) {
+                System.out.println("Unable to write " + filename + ": " + e.getMessage());
+                OutputPublisher.get(false).discard(filename);
+                RunMetrics.recordError("write");
+                writeFailures.add(e);
+                throw new CompletionException(e);
+            }
+        }, writeExecutor);
+        BuildManifest.writing(TripUtils.getOutputName(filename, false), write);
+        return write;
+    }
+
+    /**
+     * Waits for every trip and write to finish and stops the stage threads.
+     */
+    public void finish() throws DataBuilderException {
+        try {
+            pending.arriveAndAwaitAdvance();
+            if (!tripFailures.isEmpty()) {
+                Throwable failure = tripFailures.get(0);
+                if (failure instanceof DataBuilderException) {
+                    throw (DataBuilderException) failure;
+                }
+                throw new DataBuilderException(failure.getMessage(), failure);
+            }
+        } finally {
+            transformExecutor.shutdown();
+            writeExecutor.shutdown();
+            try {
+                writeExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DataBuilderException(e);
+            }
+        }
+        if (!writeFailures.isEmpty()) {
+            throw new DataBuilderException(writeFailures.size() + " trip outputs could not be written",
+                    writeFailures.get(0));
+        }
+    }
+
+    /**
+     * Cancels the trips still in flight and stops the stage threads, after a failure.
+     */
+    public void cancel() {
+        for (CompletableFuture<?> trip : trips) {
+            trip.cancel(true);
+        }
+        transformExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+    }
+}
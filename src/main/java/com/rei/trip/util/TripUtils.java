@@ -1,28 +1,26 @@
 package com.rei.trip.util;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.commons.io.IOUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.XML;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.*;
-import java.net.URL;
-import java.net.URLConnection;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * Utility class for trip API.
@@ -30,14 +28,83 @@ import java.nio.charset.Charset;
  * @author sahan
  */
 public class TripUtils {
+    private static final DocumentBuilderFactory documentBuilderFactory = createDocumentBuilderFactory();
+    private static final ThreadLocal<DocumentBuilder> documentBuilders = ThreadLocal.withInitial(() -> {
+        try {
+            return documentBuilderFactory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final XMLInputFactory xmlInputFactory = createXmlInputFactory();
+    private static final boolean emptyElementIsObject = isEmptyElementObject();
+    private static volatile DocumentSource documentSource = new HttpDocumentSource();
+
+    /**
+     * Sets where Documentum documents are read from, the CMS over HTTP by default.
+     */
+    public static void setDocumentSource(DocumentSource source) {
+        documentSource = source;
+    }
+
+    public static DocumentSource getDocumentSource() {
+        return documentSource;
+    }
 
     public static String getFileContent(String url) throws IOException {
-        InputStream input = new URL(url).openStream();
-        String content = IOUtils.toString(input, Charset.forName("UTF-8"));
-        IOUtils.closeQuietly(input);
+        return new String(getDocumentBytes(url), Charset.forName("UTF-8"));
+    }
 
-        return content;
+    /**
+     * Gets the raw bytes of a Documentum document, fetching it at most once per run
+     */
+    public static byte[] getDocumentBytes(String url) throws IOException {
+        try {
+            byte[] content = DocumentCache.get(url, TripUtils::fetchDocument);
+            BuildManifest.recordDocument(url, content);
+            return content;
+        } catch (FileNotFoundException e) {
+            BuildManifest.recordMissingDocument(url);
+            throw e;
+        }
     }
+
+    /**
+     * Records a Documentum document as an input of the outputs being built, without fetching it
+     * again if it was released from the document cache
+     */
+    public static void recordDocument(String url) throws IOException {
+        String hash = DocumentCache.getReleasedHash(url);
+        if (hash != null) {
+            BuildManifest.recordDocumentHash(url, hash);
+        } else {
+            getDocumentBytes(url);
+        }
+    }
+
+    /**
+     * Gets the hash of a Documentum document, without fetching it again if it was released
+     */
+    public static String getDocumentHash(String url) throws IOException {
+        String hash = DocumentCache.getReleasedHash(url);
+        return hash != null ? hash : hash(getDocumentBytes(url));
+    }
+
+    private static byte[] fetchDocument(String url) throws IOException {
+        long start = System.nanoTime();
+        try {
+            byte[] content = documentSource.read(url);
+            RunMetrics.recordFetch(url, start, content.length);
+            return content;
+        } catch (FileNotFoundException e) {
+            RunMetrics.recordError("notFound");
+            throw e;
+        } catch (IOException e) {
+            RunMetrics.recordError("fetch");
+            throw e;
+        }
+    }
+
     /**
      * Gets json object from xml
      */
@@ -55,26 +122,38 @@ public class TripUtils {
 
     public static void writeJsonToFile(String filename, JSONObject obj, boolean isContent)
             throws IOException, JSONException {
-        String path;
-
-        if (isContent) {
-            path = TripConstants.TRIP_CONTENT_PATH;
-        } else {
-            path = TripConstants.TRIP_JSON_PATH;
+        try {
+            JsonFileWriter.write(OutputPublisher.get(isContent).openOutput(filename), obj);
+        } catch (IOException | JSONException e) {
+            OutputPublisher.get(isContent).discard(filename);
+            throw e;
         }
-        File file = new File(path + filename);
+        BuildManifest.written(getOutputName(filename, isContent));
+    }
 
-        if (!file.exists()) {
-            file.createNewFile();
+    /**
+     * Gets the name an output file is known by in the build manifest
+     */
+    public static String getOutputName(String filename, boolean isContent) {
+        return isContent ? "pageContent/" + filename : filename;
+    }
+
+    /**
+     * Gets the SHA-1 hex digest of the content
+     */
+    public static String hash(byte[] content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest.digest(content)) {
+                builder.append(String.format("%02x", b));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
-        ObjectMapper mapper = new ObjectMapper();
-        Object json = mapper.readValue(obj.toString(), Object.class);
-        String jsonStr = mapper.writerWithDefaultPrettyPrinter().writeValueAsString(json);
-        FileWriter writer = new FileWriter(file);
-        writer.write(jsonStr);
-        writer.flush();
-        writer.close();
     }
+
     /**
      * creates directory for json files
      */
@@ -118,38 +197,143 @@ public class TripUtils {
         return s.substring(0, 1).toUpperCase() + s.substring(1).toLowerCase();
     }
 
+    /**
+     * Gets the markup of a node as is, see MarkupWriter for whitespace normalized markup.
+     */
     public static String nodeToString(Node node) {
-        StringWriter sw = new StringWriter();
-        try {
-            Transformer t = TransformerFactory.newInstance().newTransformer();
-            t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-            t.setOutputProperty(OutputKeys.INDENT, "yes");
-            t.transform(new DOMSource(node), new StreamResult(sw));
-        } catch (TransformerException te) {
-            System.out.println("nodeToString Transformer Exception");
-        }
-        return sw.toString();
+        return MarkupWriter.toString(node, MarkupWriter.Whitespace.PRESERVE);
     }
 
     public static Document getXmlDocument(String path, String tripId, String type) {
         String url = TripConstants.DOC_BASE + path + tripId + type;
         Document doc = null;
         try {
-            URL loc = new URL(url);
-            URLConnection urlConnection = loc.openConnection();
-            InputStream in = new BufferedInputStream(urlConnection.getInputStream());
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            doc = dBuilder.parse(in);
+            doc = parseXml(getDocumentBytes(url));
             doc.getDocumentElement().normalize();
+        } catch (FileNotFoundException e) {
+            // the trip has no such document
         } catch (IOException e) {
-            //e.printStackTrace();
-        } catch (ParserConfigurationException e) {
-            e.printStackTrace();
+            System.out.println("Unable to read " + url + ": " + e.getMessage());
         } catch (SAXException e) {
+            RunMetrics.recordError("parse");
             e.printStackTrace();
         }
 
         return doc;
     }
+
+    /**
+     * Parses xml with a builder from the shared factory. DTDs and external entities are never loaded.
+     */
+    public static Document parseXml(byte[] content) throws SAXException, IOException {
+        DocumentBuilder builder = documentBuilders.get();
+        builder.reset();
+        return builder.parse(new ByteArrayInputStream(content));
+    }
+
+    private static DocumentBuilderFactory createDocumentBuilderFactory() {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setXIncludeAware(false);
+        factory.setExpandEntityReferences(false);
+        try {
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+        return factory;
+    }
+
+    /**
+     * Opens a pull parser over xml from the shared StAX factory. DTDs and external entities are never loaded.
+     */
+    public static XMLStreamReader createXmlStreamReader(InputStream input) throws XMLStreamException {
+        return xmlInputFactory.createXMLStreamReader(input);
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /**
+     * Gets json object from a parsed xml document, the same way XML.toJSONObject does from its text:
+     * attributes and child elements become keys, text becomes "content" and repeated keys become arrays.
+     * TripUtilsTest checks the two agree over the fixtures.
+     */
+    public static JSONObject getJsonFromXml(Document doc) throws JSONException {
+        JSONObject json = new JSONObject();
+        Element root = doc.getDocumentElement();
+        json.accumulate(root.getNodeName(), elementToJson(root));
+        return json;
+    }
+
+    private static Object elementToJson(Element element) throws JSONException {
+        JSONObject json = new JSONObject();
+
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Node attribute = attributes.item(i);
+            json.accumulate(attribute.getNodeName(), stringToValue(attribute.getNodeValue()));
+        }
+
+        NodeList children = element.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node child = children.item(i);
+            switch (child.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    json.accumulate(child.getNodeName(), elementToJson((Element) child));
+                    break;
+                case Node.CDATA_SECTION_NODE:
+                    if (child.getNodeValue().length() > 0) {
+                        json.accumulate("content", child.getNodeValue());
+                    }
+                    break;
+                case Node.TEXT_NODE:
+                    String text = child.getNodeValue().trim();
+                    if (text.length() > 0) {
+                        json.accumulate("content", stringToValue(text));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (json.length() == 0) {
+            return emptyElement();
+        } else if (json.length() == 1 && json.has("content")) {
+            return json.get("content");
+        }
+        return json;
+    }
+
+    /**
+     * Converts xml text to a boolean, null, number or string value with JSONObject.stringToValue, as
+     * XML.toJSONObject does.
+     */
+    private static Object stringToValue(String string) {
+        return JSONObject.stringToValue(string);
+    }
+
+    /**
+     * Gets the value XML.toJSONObject gives an empty element written as &lt;x/&gt;. A parsed document
+     * no longer tells it from &lt;x&gt;&lt;/x&gt;, so empty elements all convert this way.
+     */
+    private static Object emptyElement() {
+        return emptyElementIsObject ? new JSONObject() : "";
+    }
+
+    private static boolean isEmptyElementObject() {
+        try {
+            return XML.toJSONObject("<x/>").get("x") instanceof JSONObject;
+        } catch (JSONException e) {
+            return false;
+        }
+    }
 }
@@ -0,0 +1,138 @@
+package com.rei.trip;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Builds a small catalog from a mirror, in full or in two shards that are merged, and rebuilds a
+ * trip in place, checking that the other trips stay published and known to the build manifest.
+ *
+ * @author sahan
+ */
+public class ShardMergeTest {
+    private static final int TRIPS = 4;
+    private static final int REGIONS = 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File mirror;
+
+    @Before
+    public void writeMirror() throws IOException {
+        mirror = folder.newFolder("mirror");
+        String trip = new String(readFixture("trip.xml"), StandardCharsets.UTF_8);
+        byte[] detail = readFixture("detail.xml");
+
+        StringBuilder tripList = new StringBuilder("<tripList>");
+        for (int region = 0; region < REGIONS; region++) {
+            tripList.append("<region><regionName>region").append(region).append("</regionName><trips>");
+            for (int i = region; i < TRIPS; i += REGIONS) {
+                String tripPath = "adventures/trips/region" + region + "/";
+                String tripId = getTripId(i);
+                tripList.append("<trip>/").append(tripPath).append(String.format("l%05d", i)).append(".xml</trip>");
+
+                write(tripPath + String.format("l%05d", i) + ".xml", trip.replace(
+                        "<trip_id_number>kil</trip_id_number>", "<trip_id_number>" + tripId + "</trip_id_number>"));
+                FileUtils.writeByteArrayToFile(new File(mirror, tripPath + tripId + "_dir/detail.xml"), detail);
+                write(tripPath + tripId + "_dir/gearlist.xml", "<gearlist><section><header type=\"selector\">"
+                        + "Clothing</header><p>Layers for " + tripId + "</p></section></gearlist>");
+                write(tripPath + tripId + "_dir/slideshow.xml", "<images><pic><image>/images/" + tripId
+                        + ".jpg</image><thumbnail>/images/" + tripId + "_thumb.jpg</thumbnail>"
+                        + "<caption>Day 1</caption></pic></images>");
+            }
+            tripList.append("</trips></region>");
+        }
+        write("adventures/data/trip-list.xml", tripList.append("</tripList>").toString());
+        write("adventures/data/cross-sell-list.xml", "<cross-sell-list></cross-sell-list>");
+        FileUtils.writeByteArrayToFile(new File(mirror, "adventures/data/listing-page-headers.xml"),
+                readFixture("listing-page-headers.xml"));
+    }
+
+    @Test
+    public void inPlaceRebuildAfterMergeKeepsOtherTrips() throws IOException {
+        File shard0 = folder.newFolder("shard0");
+        File shard1 = folder.newFolder("shard1");
+        File merged = folder.newFolder("merged");
+        run(shard0, "--shard=0/2");
+        run(shard1, "--shard=1/2");
+        run(merged, "--merge=" + shard0 + "," + shard1);
+        run(merged, "--trip=" + getTripId(1));
+
+        Map<String, Map<String, String>> outputs = readManifestOutputs(merged);
+        for (int i = 0; i < TRIPS; i++) {
+            String output = "region" + (i % REGIONS) + "/" + getTripId(i) + ".json";
+            assertTrue(output, new File(merged, "tripData/" + output).exists());
+            // the inputs recorded by the shard came along with the merge
+            assertNotNull(output, outputs.get(output));
+            assertTrue(output, outputs.get(output).containsKey("params"));
+        }
+    }
+
+    @Test
+    public void inPlaceRebuildWithoutManifestKeepsOtherTrips() throws IOException {
+        File root = folder.newFolder("full");
+        run(root);
+        assertTrue(new File(root, "buildManifest.json").delete());
+        run(root, "--trip=" + getTripId(1));
+
+        for (int i = 0; i < TRIPS; i++) {
+            String output = "region" + (i % REGIONS) + "/" + getTripId(i) + ".json";
+            assertTrue(output, new File(root, "tripData/" + output).exists());
+        }
+        assertTrue(new File(root, "pageContent/landingPages.json").exists());
+    }
+
+    private void run(File root, String... options) throws IOException {
+        File programManagers = new File(root, "tripData/programManagers.txt");
+        if (!programManagers.exists()) {
+            write(programManagers, "pm@" + getTripId(0) + "@Manager@Runs the trip@manager.jpg\n");
+        }
+
+        List<String> args = new ArrayList<>(Arrays.asList("--mirror=" + mirror, "--no-http-cache",
+                "--output-dir=" + root, "--manifest=" + new File(root, "buildManifest.json")));
+        args.addAll(Arrays.asList(options));
+        Main.main(args.toArray(new String[0]));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Map<String, String>> readManifestOutputs(File root) throws IOException {
+        Map<String, Object> manifest = new ObjectMapper().readValue(new File(root, "buildManifest.json"), Map.class);
+        return (Map<String, Map<String, String>>) manifest.get("outputs");
+    }
+
+    private void write(String path, String content) throws IOException {
+        write(new File(mirror, path), content);
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileUtils.writeStringToFile(file, content, "UTF-8");
+    }
+
+    private static String getTripId(int trip) {
+        return String.format("t%05d", trip);
+    }
+
+    private static byte[] readFixture(String name) throws IOException {
+        try (InputStream input = ShardMergeTest.class.getResourceAsStream("/fixtures/" + name)) {
+            return IOUtils.toByteArray(input);
+        }
+    }
+}
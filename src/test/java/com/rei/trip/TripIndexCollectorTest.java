@@ -0,0 +1,114 @@
+package com.rei.trip;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks where the index collector takes the value of each trip from: this run, the published
+ * index, a shard manifest or the basic json on disk.
+ *
+ * @author sahan
+ */
+public class TripIndexCollectorTest {
+    private final Map<String, String> published = new LinkedHashMap<>();
+    private final Map<String, JSONObject> onDisk = new HashMap<>();
+
+    @Test
+    public void tripListTakesBuiltThenPublishedThenBasicJson() throws Exception {
+        published.put("kil", "published-kil");
+        published.put("oar", "published-oar");
+        onDisk.put("eve", basic("disk-eve"));
+        TripIndexCollector<String> collector = collector();
+        collector.add("kil", basic("built-kil"));
+        collector.add("tor", basic("built-tor"));
+
+        Map<String, String> values = collector.collect(regions("eve", "kil", "oar", "tor", "gone"));
+
+        assertEquals(Arrays.asList("eve", "kil", "oar", "tor"), Arrays.asList(values.keySet().toArray()));
+        assertEquals("disk-eve", values.get("eve"));
+        assertEquals("built-kil", values.get("kil"));
+        assertEquals("published-oar", values.get("oar"));
+        assertEquals("built-tor", values.get("tor"));
+    }
+
+    @Test
+    public void partialRunMergesBuiltTripsIntoPublishedIndex() throws Exception {
+        published.put("kil", "published-kil");
+        published.put("oar", "published-oar");
+        TripIndexCollector<String> collector = collector();
+        collector.add("tor", basic("built-tor"));
+        collector.add("kil", basic("built-kil"));
+
+        Map<String, String> values = collector.collect(null);
+
+        assertEquals(Arrays.asList("kil", "oar", "tor"), Arrays.asList(values.keySet().toArray()));
+        assertEquals("built-kil", values.get("kil"));
+        assertEquals("published-oar", values.get("oar"));
+    }
+
+    @Test
+    public void tripWhoseBasicJsonFailedIsLeftOut() throws Exception {
+        published.put("kil", "published-kil");
+        onDisk.put("kil", basic("disk-kil"));
+        TripIndexCollector<String> collector = collector();
+        collector.fail("kil");
+
+        assertEquals(0, collector.collect(null).size());
+        assertEquals(0, collector.collect(regions("kil")).size());
+        assertNull(collector.get("africa", "kil"));
+    }
+
+    @Test
+    public void shardManifestCarriesValuesToMerge() throws Exception {
+        onDisk.put("oar", basic("disk-oar"));
+        TripIndexCollector<String> shard = collector();
+        shard.add("kil", basic("built-kil"));
+        JSONObject kil = new JSONObject().put("tripId", "kil");
+        JSONObject oar = new JSONObject().put("tripId", "oar");
+        JSONObject eve = new JSONObject().put("tripId", "eve");
+        shard.putShardTrip(kil, "africa");
+        shard.putShardTrip(oar, "africa");
+        shard.putShardTrip(eve, "africa");
+        assertFalse(eve.has("value"));
+
+        onDisk.clear();
+        published.put("kil", "published-kil");
+        TripIndexCollector<String> merge = collector();
+        merge.addShardTrip(kil);
+        merge.addShardTrip(oar);
+        merge.addShardTrip(eve);
+        Map<String, String> values = merge.collect(regions("kil", "oar", "eve"));
+
+        assertEquals("built-kil", values.get("kil"));
+        assertEquals("disk-oar", values.get("oar"));
+        assertEquals(2, values.size());
+    }
+
+    private TripIndexCollector<String> collector() {
+        return new TripIndexCollector<>("value", basic -> basic.getString("value"),
+                trip -> trip.getString("value"), () -> new LinkedHashMap<>(published),
+                (regionName, tripId) -> onDisk.get(tripId));
+    }
+
+    private static JSONObject basic(String value) throws JSONException {
+        return new JSONObject().put("value", value);
+    }
+
+    private static Map<String, String> regions(String... tripIds) {
+        Map<String, String> regions = new LinkedHashMap<>();
+        for (String tripId : tripIds) {
+            regions.put(tripId, "africa");
+        }
+        return regions;
+    }
+}
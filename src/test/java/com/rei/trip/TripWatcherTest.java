@@ -0,0 +1,32 @@
+package com.rei.trip;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that watch mode outlives a failing cycle.
+ *
+ * @author sahan
+ */
+public class TripWatcherTest {
+
+    @Test
+    public void keepsWatchingAfterCycleThrows() throws Exception {
+        AtomicInteger cycles = new AtomicInteger();
+        new TripWatcher(0, 0).run((selector, first) -> {
+            if (cycles.incrementAndGet() == 1) {
+                throw new IllegalStateException("cycle failed");
+            }
+            // stop after the second cycle
+            Thread.currentThread().interrupt();
+            return null;
+        });
+
+        assertEquals(2, cycles.get());
+        assertTrue(Thread.interrupted());
+    }
+}
@@ -0,0 +1,155 @@
+package com.rei.trip.util;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which outputs the build manifest finds up to date and which it keeps for the next run.
+ *
+ * @author sahan
+ */
+public class BuildManifestTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String manifest;
+    private File input;
+    private File output;
+
+    @Before
+    public void setUp() throws IOException {
+        manifest = new File(folder.getRoot(), "manifest.json").getPath();
+        input = folder.newFile("trip.xml");
+        output = folder.newFile("basic.json");
+        FileUtils.writeStringToFile(input, "<trip/>", "UTF-8");
+    }
+
+    @Test
+    public void outputIsUpToDateWhileInputsAndParamsAreUnchanged() throws IOException {
+        build("basic.json", "kil");
+
+        BuildManifest.load(manifest, false);
+        assertTrue(BuildManifest.isUpToDate("basic.json", output, "kil"));
+        assertTrue(BuildManifest.getOutputs().contains("basic.json"));
+
+        BuildManifest.load(manifest, false);
+        assertFalse(BuildManifest.isUpToDate("basic.json", output, "oar"));
+
+        FileUtils.writeStringToFile(input, "<trip id=\"kil\"/>", "UTF-8");
+        BuildManifest.load(manifest, false);
+        assertFalse(BuildManifest.isUpToDate("basic.json", output, "kil"));
+    }
+
+    @Test
+    public void outputWithoutFileIsNotUpToDate() throws IOException {
+        build("basic.json", "kil");
+        assertTrue(output.delete());
+
+        BuildManifest.load(manifest, false);
+        assertFalse(BuildManifest.isUpToDate("basic.json", output, "kil"));
+    }
+
+    @Test
+    public void fullRebuildFindsNothingUpToDateButKeepsPreviousOutputs() throws IOException {
+        build("basic.json", "kil");
+
+        BuildManifest.load(manifest, true);
+        assertFalse(BuildManifest.isUpToDate("basic.json", output, "kil"));
+        assertFalse(BuildManifest.getOutputs().contains("basic.json"));
+        BuildManifest.keepAll();
+        assertTrue(BuildManifest.getOutputs().contains("basic.json"));
+    }
+
+    @Test
+    public void upToDateOutputKeepsNestedOutputs() throws IOException {
+        BuildManifest.load(manifest, false);
+        BuildManifest.begin("tripList.json");
+        try {
+            BuildManifest.recordFile(input.getPath());
+            record("basic.json", "kil");
+            BuildManifest.written("tripList.json");
+        } finally {
+            BuildManifest.end();
+        }
+        BuildManifest.save();
+
+        BuildManifest.load(manifest, false);
+        assertTrue(BuildManifest.isUpToDate("tripList.json", output));
+        assertTrue(BuildManifest.getOutputs().contains("basic.json"));
+    }
+
+    @Test
+    public void outputWrittenByAnotherThreadIsKeptOnceItsWriteSucceeds() {
+        BuildManifest.load(manifest, false);
+        CompletableFuture<Void> write = new CompletableFuture<>();
+        BuildManifest.begin("basic.json", "kil");
+        try {
+            BuildManifest.recordFile(input.getPath());
+            BuildManifest.writing("basic.json", write);
+        } finally {
+            BuildManifest.end();
+        }
+
+        assertFalse(BuildManifest.getOutputs().contains("basic.json"));
+        write.complete(null);
+        assertTrue(BuildManifest.getOutputs().contains("basic.json"));
+    }
+
+    @Test
+    public void outputWhoseWriteFailsIsNotKept() {
+        BuildManifest.load(manifest, false);
+        CompletableFuture<Void> write = new CompletableFuture<>();
+        BuildManifest.begin("basic.json", "kil");
+        try {
+            BuildManifest.recordFile(input.getPath());
+            BuildManifest.writing("basic.json", write);
+        } finally {
+            BuildManifest.end();
+        }
+
+        write.completeExceptionally(new IOException("disk full"));
+        assertFalse(BuildManifest.getOutputs().contains("basic.json"));
+    }
+
+    @Test
+    public void outputThatWasNotWrittenIsNotKept() {
+        BuildManifest.load(manifest, false);
+        BuildManifest.begin("basic.json", "kil");
+        try {
+            BuildManifest.recordFile(input.getPath());
+        } finally {
+            BuildManifest.end();
+        }
+
+        assertFalse(BuildManifest.getOutputs().contains("basic.json"));
+    }
+
+    /**
+     * Builds an output from the input file in a run of its own and saves the manifest.
+     */
+    private void build(String name, String... params) throws IOException {
+        BuildManifest.load(manifest, false);
+        record(name, params);
+        BuildManifest.save();
+    }
+
+    private void record(String name, String... params) {
+        BuildManifest.begin(name, params);
+        try {
+            BuildManifest.recordFile(input.getPath());
+            BuildManifest.written(name);
+        } finally {
+            BuildManifest.end();
+        }
+    }
+}
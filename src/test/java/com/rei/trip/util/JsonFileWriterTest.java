@@ -0,0 +1,82 @@
+package com.rei.trip.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Checks that JsonFileWriter writes what serializing the object to a string and pretty printing
+ * it with Jackson writes, the way writeJsonToFile formatted its output before.
+ *
+ * @author sahan
+ */
+public class JsonFileWriterTest {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @After
+    public void tearDown() {
+        JsonFileWriter.configure(false);
+    }
+
+    @Test
+    public void writesFixturesLikeJackson() throws Exception {
+        for (String fixture : new String[]{"trip.xml", "detail.xml", "listing-page-headers.xml"}) {
+            JSONObject json = TripUtils.getJsonFromXml(TripUtils.parseXml(readFixture(fixture)));
+            assertEquals(fixture, prettyPrint(json), write(json));
+        }
+    }
+
+    @Test
+    public void writesValuesLikeJackson() throws Exception {
+        Map<String, Object> card = new LinkedHashMap<>();
+        card.put("tripId", "kil");
+        card.put("days", Arrays.asList(7, 8));
+        JSONObject json = new JSONObject();
+        json.put("title", "Kilimanjaro \"Lemosho\" \u00e9t\u00e9 \\ / \t");
+        json.put("count", 12);
+        json.put("big", 12345678901L);
+        json.put("price", 1299.0);
+        json.put("ratio", 0.1);
+        json.put("soldOut", true);
+        json.put("none", JSONObject.NULL);
+        json.put("empty", new JSONObject());
+        json.put("dates", new JSONArray().put("2026-10-18").put(new JSONArray()));
+        json.put("card", card);
+        json.put("tags", Arrays.asList("camping", "hiking"));
+
+        assertEquals(prettyPrint(json), write(json));
+
+        JsonFileWriter.configure(true);
+        assertEquals(mapper.writeValueAsString(mapper.readValue(json.toString(), Object.class)), write(json));
+    }
+
+    private static String prettyPrint(JSONObject json) throws Exception {
+        return mapper.writerWithDefaultPrettyPrinter().writeValueAsString(mapper.readValue(json.toString(), Object.class));
+    }
+
+    private static String write(JSONObject json) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        JsonFileWriter.write(output, json);
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readFixture(String name) throws Exception {
+        try (InputStream input = JsonFileWriterTest.class.getResourceAsStream("/fixtures/" + name)) {
+            assertNotNull("fixtures/" + name, input);
+            return IOUtils.toByteArray(input);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.rei.trip.util;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Checks the whitespace modes of MarkupWriter against serializing with a Transformer and
+ * normalizing with the regexes the modes replace.
+ *
+ * @author sahan
+ */
+public class MarkupWriterTest {
+    private static final String MARKUP = "<overview class=\"intro\" title=\"a b\">\r\n"
+            + "\t<p>Day  <b>1</b>:\t hike &amp; camp</p>\n"
+            + "  <br/>  <note>  Sold out  </note>\n"
+            + "</overview>";
+
+    @Test
+    public void preserveKeepsWhitespace() throws Exception {
+        assertEquals("<p>Day  <b>1</b>:\t hike &amp; camp</p>",
+                MarkupWriter.toString(firstElement(parse(MARKUP), "p"), MarkupWriter.Whitespace.PRESERVE));
+    }
+
+    @Test
+    public void stripDropsBreaksAndTabs() throws Exception {
+        assertEquals("<overview class=\"intro\" title=\"a b\"><p>Day  <b>1</b>: hike &amp; camp</p>"
+                        + "  <br/>  <note>  Sold out  </note></overview>",
+                MarkupWriter.toString(parse(MARKUP).getDocumentElement(), MarkupWriter.Whitespace.STRIP));
+    }
+
+    @Test
+    public void stripAndCollapseCollapsesRuns() throws Exception {
+        assertEquals("<overview class=\"intro\" title=\"a b\"><p>Day <b>1</b>: hike &amp; camp</p>"
+                        + " <br/> <note> Sold out </note></overview>",
+                MarkupWriter.toString(parse(MARKUP).getDocumentElement(),
+                        MarkupWriter.Whitespace.STRIP_AND_COLLAPSE));
+    }
+
+    @Test
+    public void collapseTurnsTabsIntoSpaces() throws Exception {
+        assertEquals("<p>Day <b>1</b>: hike &amp; camp</p>",
+                MarkupWriter.toString(firstElement(parse(MARKUP), "p"), MarkupWriter.Whitespace.COLLAPSE));
+        assertEquals("Day 1: hike", MarkupWriter.normalize("Day\t1:\r\n  hike", MarkupWriter.Whitespace.COLLAPSE));
+    }
+
+    @Test
+    public void appendCollapsesAcrossNodes() throws Exception {
+        Document doc = parse(MARKUP);
+        StringBuilder builder = new StringBuilder("Overview ");
+        MarkupWriter.append(builder, doc.getDocumentElement().getChildNodes().item(0),
+                MarkupWriter.Whitespace.COLLAPSE);
+        MarkupWriter.append(builder, firstElement(doc, "p"), MarkupWriter.Whitespace.COLLAPSE);
+        assertEquals("Overview <p>Day <b>1</b>: hike &amp; camp</p>", builder.toString());
+    }
+
+    @Test
+    public void matchesTransformerAndRegexesOverFixtures() throws Exception {
+        for (String fixture : new String[]{"trip.xml", "detail.xml", "listing-page-headers.xml"}) {
+            NodeList elements = parse(readFixture(fixture)).getElementsByTagName("*");
+            for (int i = 0; i < elements.getLength(); i++) {
+                Element element = (Element) elements.item(i);
+                String serialized = serialize(element);
+                String stripped = serialized.replaceAll("\\r|\\n|\\t", "");
+                assertEquals(fixture, stripped, MarkupWriter.toString(element, MarkupWriter.Whitespace.STRIP));
+                assertEquals(fixture, stripped.replaceAll("\\s+", " "),
+                        MarkupWriter.toString(element, MarkupWriter.Whitespace.STRIP_AND_COLLAPSE));
+                assertEquals(fixture, serialized.replaceAll("\\r|\\n", "").replaceAll("\\s+", " "),
+                        MarkupWriter.toString(element, MarkupWriter.Whitespace.COLLAPSE));
+            }
+        }
+    }
+
+    private static String serialize(Element element) throws Exception {
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        StringWriter writer = new StringWriter();
+        transformer.transform(new DOMSource(element), new StreamResult(writer));
+        return writer.toString();
+    }
+
+    private static Element firstElement(Document doc, String name) {
+        return (Element) doc.getElementsByTagName(name).item(0);
+    }
+
+    private static Document parse(String xml) throws Exception {
+        return parse(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Document parse(byte[] xml) throws Exception {
+        return TripUtils.parseXml(xml);
+    }
+
+    private static byte[] readFixture(String name) throws Exception {
+        try (InputStream input = MarkupWriterTest.class.getResourceAsStream("/fixtures/" + name)) {
+            assertNotNull("fixtures/" + name, input);
+            return IOUtils.toByteArray(input);
+        }
+    }
+}
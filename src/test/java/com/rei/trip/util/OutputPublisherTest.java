@@ -0,0 +1,98 @@
+package com.rei.trip.util;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the staging, publishing and aborting of output releases.
+ *
+ * @author sahan
+ */
+public class OutputPublisherTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void firstPublishTurnsDirectoryIntoRelease() throws Exception {
+        File root = folder.newFolder("tripData");
+        FileUtils.writeStringToFile(new File(root, "old.json"), "{}", "UTF-8");
+        FileUtils.writeStringToFile(new File(root, "region/trip.json"), "{}", "UTF-8");
+        FileUtils.writeStringToFile(new File(root, "new.json"), "{}", "UTF-8");
+        OutputPublisher publisher = new OutputPublisher(root.getPath());
+
+        publisher.begin();
+        write(publisher, "new.json", "{\"a\":1}");
+        publisher.publish();
+
+        assertTrue(Files.isSymbolicLink(root.toPath()));
+        assertEquals("{\"a\":1}", FileUtils.readFileToString(new File(root, "new.json"), "UTF-8"));
+        // nothing of the plain directory is dropped
+        assertEquals("{}", FileUtils.readFileToString(new File(root, "old.json"), "UTF-8"));
+        assertEquals("{}", FileUtils.readFileToString(new File(root, "region/trip.json"), "UTF-8"));
+        File[] releases = releases(root);
+        assertEquals(2, releases.length);
+        File initial = releases[0].getName().startsWith("initial-") ? releases[0] : releases[1];
+        assertTrue(new File(initial, "old.json").exists());
+    }
+
+    @Test
+    public void unchangedFileIsLinkedToPublishedOne() throws Exception {
+        File root = new File(folder.getRoot(), "tripData");
+        OutputPublisher publisher = new OutputPublisher(root.getPath());
+        publisher.begin();
+        write(publisher, "trip.json", "{\"a\":1}");
+        publisher.publish();
+        File published = new File(root, "trip.json").getCanonicalFile();
+
+        publisher.begin();
+        write(publisher, "trip.json", "{\"a\":1}");
+        write(publisher, "changed.json", "{\"b\":2}");
+        publisher.publish();
+
+        assertTrue(Files.isSameFile(published.toPath(), new File(root, "trip.json").toPath()));
+        assertFalse(published.equals(new File(root, "trip.json").getCanonicalFile()));
+    }
+
+    @Test
+    public void abortRemovesStagingAndKeepsPublishedRelease() throws Exception {
+        File root = new File(folder.getRoot(), "tripData");
+        OutputPublisher publisher = new OutputPublisher(root.getPath());
+        publisher.begin();
+        write(publisher, "trip.json", "{\"a\":1}");
+        publisher.publish();
+        File[] published = releases(root);
+
+        publisher.begin();
+        write(publisher, "trip.json", "{\"a\":2}");
+        publisher.abort();
+
+        assertArrayEquals(published, releases(root));
+        assertEquals("{\"a\":1}", FileUtils.readFileToString(new File(root, "trip.json"), "UTF-8"));
+    }
+
+    private static void write(OutputPublisher publisher, String filename, String content) throws IOException {
+        try (OutputStream output = publisher.openOutput(filename)) {
+            output.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static File[] releases(File root) {
+        File[] releases = new File(root.getParentFile(), root.getName() + ".releases").listFiles();
+        Arrays.sort(releases);
+        return releases;
+    }
+}
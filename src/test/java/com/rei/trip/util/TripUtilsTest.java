@@ -0,0 +1,60 @@
+package com.rei.trip.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.io.IOUtils;
+import org.json.XML;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Checks that getJsonFromXml converts a parsed document the way XML.toJSONObject converts its text.
+ *
+ * @author sahan
+ */
+public class TripUtilsTest {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void convertsTripFixtureLikeXmlToJsonObject() throws Exception {
+        assertConvertsLikeXml(readFixture("trip.xml"));
+    }
+
+    @Test
+    public void convertsDetailFixtureLikeXmlToJsonObject() throws Exception {
+        assertConvertsLikeXml(readFixture("detail.xml"));
+    }
+
+    @Test
+    public void convertsListingPageFixtureLikeXmlToJsonObject() throws Exception {
+        assertConvertsLikeXml(readFixture("listing-page-headers.xml"));
+    }
+
+    @Test
+    public void convertsValuesLikeXmlToJsonObject() throws Exception {
+        assertConvertsLikeXml(("<trip id=\"007\" days=\"12\" price=\"1299.00\" big=\"12345678901\">"
+                + "<open>true</open><closed>FALSE</closed><none>null</none><zero>0</zero>"
+                + "<negative>-3</negative><exponent>1e5</exponent><padded>  text  </padded>"
+                + "<empty/><entity>Tom &amp; Jerry</entity><cdata><![CDATA[<b>bold</b>]]></cdata>"
+                + "<repeated>a</repeated><repeated>b</repeated>"
+                + "<mixed type=\"note\">Sold out<b>H</b></mixed></trip>").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertConvertsLikeXml(byte[] xml) throws Exception {
+        JsonNode expected = mapper.readTree(XML.toJSONObject(new String(xml, StandardCharsets.UTF_8)).toString());
+        JsonNode actual = mapper.readTree(TripUtils.getJsonFromXml(TripUtils.parseXml(xml)).toString());
+        assertEquals(expected, actual);
+    }
+
+    private static byte[] readFixture(String name) throws Exception {
+        try (InputStream input = TripUtilsTest.class.getResourceAsStream("/fixtures/" + name)) {
+            assertNotNull("fixtures/" + name, input);
+            return IOUtils.toByteArray(input);
+        }
+    }
+}